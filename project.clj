@@ -13,4 +13,6 @@
       ;;   sketch.dynamic 
       ;;   sketch.runcore
         ]
-  :main sketch.runcore)
+  :main sketch.runcore
+  :profiles {:headless {:jvm-opts ["-Djava.awt.headless=true"]}}
+  :aliases {"grow" ["with-profile" "+headless" "run" "-m" "sketch.headless"]})
@@ -0,0 +1,130 @@
+(ns sketch.archive
+  (:require [sketch.path :as path]))
+
+;; ------------ Frozen Geometry Archive -----------------
+;; Hardened nodes stop moving, so once they are fixed there is no reason
+;; to keep them in the live paths. The archive keeps them as static
+;; segments in a uniform grid: growth still feels them through repulsion,
+;; but only the segments in the cells around a node are looked at and the
+;; live paths stay small while the drawn structure keeps getting bigger.
+;;
+;; New segments wait in a pending list that queries scan directly. They
+;; are indexed into the grid in one batch once rebuild-at of them pile up.
+
+(defrecord Segment [x0 y0 x1 y1])
+
+(defrecord Archive [cell-size rebuild-at grid pending size])
+
+(defn createArchive
+  "empty archive indexed by cells of the given size"
+  ([cell-size]
+   (createArchive cell-size 512))
+  ([cell-size rebuild-at]
+   (Archive. cell-size rebuild-at {} [] 0)))
+
+(defn- segmentCells
+  "every grid cell the bounding box of a segment overlaps"
+  [cell-size segment]
+  (let [cell #(long (Math/floor (/ % cell-size)))]
+    (for [i (range (cell (min (:x0 segment) (:x1 segment))) (inc (cell (max (:x0 segment) (:x1 segment)))))
+          j (range (cell (min (:y0 segment) (:y1 segment))) (inc (cell (max (:y0 segment) (:y1 segment)))))]
+      [i j])))
+
+(defn indexPending
+  "moves the pending segments into the grid"
+  [archive]
+  (let [cell-size (:cell-size archive)]
+    (assoc archive
+           :grid (persistent!
+                  (reduce
+                   (fn [grid segment]
+                     (reduce (fn [grid k] (assoc! grid k (conj (get grid k []) segment)))
+                             grid
+                             (segmentCells cell-size segment)))
+                   (transient (:grid archive))
+                   (:pending archive)))
+           :pending [])))
+
+(defn addSegments
+  "adds segments to the archive, indexing them once enough are pending"
+  [archive segments]
+  (let [archive (-> archive
+                    (update-in [:pending] into segments)
+                    (update-in [:size] + (count segments)))]
+    (if (>= (count (:pending archive)) (:rebuild-at archive))
+      (indexPending archive)
+      archive)))
+
+(defn segments
+  "every archived segment, for drawing the frozen structure"
+  [archive]
+  (concat (distinct (mapcat val (:grid archive))) (:pending archive)))
+
+(defn- closestPoint
+  "closest point to x y on a segment as [px py squared-distance]"
+  [segment x y]
+  (let [x0 (double (:x0 segment))
+        y0 (double (:y0 segment))
+        dx (- (double (:x1 segment)) x0)
+        dy (- (double (:y1 segment)) y0)
+        length (+ (* dx dx) (* dy dy))
+        t (if (zero? length)
+            0.0
+            (max 0.0 (min 1.0 (/ (+ (* (- x x0) dx) (* (- y y0) dy)) length))))
+        px (+ x0 (* t dx))
+        py (+ y0 (* t dy))]
+    [px py (+ (* (- px x) (- px x)) (* (- py y) (- py y)))]))
+
+(defn nearestPoint
+  "closest point on any archived segment within radius of x y, or nil"
+  [archive x y radius]
+  (when (pos? (:size archive))
+    (let [x (double x)
+          y (double y)
+          cell-size (:cell-size archive)
+          cell #(long (Math/floor (/ % cell-size)))
+          grid (:grid archive)
+          candidates (concat
+                      (for [i (range (cell (- x radius)) (inc (cell (+ x radius))))
+                            j (range (cell (- y radius)) (inc (cell (+ y radius))))
+                            segment (get grid [i j])]
+                        segment)
+                      (:pending archive))
+          best (reduce
+                (fn [best segment]
+                  (let [candidate (closestPoint segment x y)]
+                    (if (or (nil? best) (< (nth candidate 2) (nth best 2)))
+                      candidate
+                      best)))
+                nil
+                candidates)]
+      (when (and best (<= (nth best 2) (* radius radius)))
+        (vec (take 2 best))))))
+
+(defn fixedSegments
+  "segments for the fixed nodes of a path. an edge between two fixed nodes
+   becomes a segment, a fixed node with no fixed neighbor becomes a point"
+  [path]
+  (let [nodes (:nodes path)
+        closed? (:is-closed (:data path))
+        fixed? #(and % (:is-fixed (:data %)) (not (:is-end (:data %))))
+        segment (fn [a b] (Segment. (:x (:position a)) (:y (:position a))
+                                    (:x (:position b)) (:y (:position b))))]
+    (reduce
+     (fn [segments node-index]
+       (let [node (get nodes node-index)
+             connected-nodes (path/getConnectedNodes nodes node-index closed?)]
+         (cond
+           (not (fixed? node)) segments
+           (fixed? (:next connected-nodes)) (conj segments (segment node (:next connected-nodes)))
+           (fixed? (:prev connected-nodes)) segments
+           :else (conj segments (segment node node)))))
+     []
+     (range (count nodes)))))
+
+(defn freeze!
+  "moves the fixed nodes of a path into the archive held by the given atom
+   and returns the path without them"
+  [archive path]
+  (swap! archive addSegments (fixedSegments path))
+  (assoc-in path [:nodes] (path/removeFixed (:nodes path))))
@@ -1,6 +1,7 @@
 (ns sketch.calculations
   (:require [quil.core :refer :all]
-            [clojure.java.shell :refer [sh]])
+            [clojure.java.shell :refer [sh]]
+            [sketch.rng :as rng])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
@@ -30,7 +31,7 @@
 (defn calculateMedian
   "find the half-way point of a given distance"
   [coords]
-  (let [random-int (+ (random 20) 30)
+  (let [random-int (+ (rng/uniform 20) 30)
         x1 (:x (:position (first coords)))
         y1 (:y (:position (first coords)))
         x2 (:x (:position (second coords)))
@@ -62,16 +63,16 @@
 (defn calculateRandomBoolean
   "returns a random boolean"
   []
-  (if (> (random 100) 50)
+  (if (> (rng/uniform 100) 50)
     true
     false))
 
 (defn calculateRandomInt
   "returns a random int between two given ints"
   ([max]
-   (random max))
+   (rng/uniform max))
   ([min max]
-   (random min max)))
+   (rng/uniform min max)))
 
 (defn calculateSlope
   "calculates the slope give two points"
@@ -4,6 +4,7 @@
    [sketch.shapes :as shape]
    [sketch.calculations :as calc]
    [sketch.path :as path]
+   [sketch.rng :as rng]
    [sketch.cart :as cart]
    [clojure.set :as set]))
 
@@ -35,7 +36,7 @@
 
 (defn unique-random-numbers
   [n]
-  (let [a-set (set (take n (repeatedly #(rand-int n))))]
+  (let [a-set (set (take n (repeatedly #(rng/uniformInt n))))]
     (concat a-set (set/difference (set (take n (range)))
                                   a-set))))
 
@@ -371,8 +372,8 @@
                         (= type "DIAG-LEFT")
                         (= type "DIAG-RIGHT")
                         (= type "DIAMOND"))
-                  (get-container-position (rand-int 3) w)
-                  (get-accent-position (rand-int 8) w))]
+                  (get-container-position (rng/uniformInt 3) w)
+                  (get-accent-position (rng/uniformInt 8) w))]
    
     (assoc-in cart [:data :parts]
               (conj (:parts (:data cart))
@@ -401,13 +402,13 @@
   [parts rand-color]
   (let [cart (Cart. -1 default-cart-data)
         cart (assign-cart-id cart)
-        rand-speed (+ (rand-int (:min-speed @all-cart)) 
+        rand-speed (+ (rng/uniformInt (:min-speed @all-cart)) 
                       (:part-width  @all-cart))
-        ;; rand-color (rand-int 8)
+        ;; rand-color (rng/uniformInt 8)
         row-count (/ (:height @all-cart) (:part-height @all-cart))
         col-count (/ (:width  @all-cart) (:part-width  @all-cart))
-        rand-row (rand-int row-count)
-        rand-col (rand-int col-count)
+        rand-row (rng/uniformInt row-count)
+        rand-col (rng/uniformInt col-count)
         rand-y (* rand-row (:part-height @all-cart))
         rand-y (if (< rand-y 0)
                  0
@@ -416,7 +417,7 @@
         rand-x (if (< rand-x 0)
                  0
                  rand-x)
-        rand-direction (rand-int 8)
+        rand-direction (rng/uniformInt 8)
         cart (assoc-in cart [:data :direction]  (get-direction rand-direction))
         cart (assoc-in cart [:data :speed]       rand-speed)
         cart (assoc-in cart [:data :position :y] rand-y)
@@ -427,7 +428,7 @@
            c cart]
       (if (<= p (- (count parts) 1))
         (let [type (get parts p) 
-              rand-shade 0 ;;(- 20 (rand-int 40)) 
+              rand-shade 0 ;;(- 20 (rng/uniformInt 40)) 
               ]
           (recur (inc p) (build-cart-part c type rand-color rand-shade)))
         c))))
@@ -439,15 +440,18 @@
                                  (assoc-in p [:color] color)))))
 
 (defn cart-generator
-  "generates a give number of uniques carts"
+  "generates a give number of uniques carts. in a seeded run every cart
+   draws from its own stream"
   [count color]
   (doseq [c (range count)]
-    (let [;;parts (vec (take 5 (unique-random-numbers 15)))
-          parts (vec (take (:part-count @all-cart) 
-                           (repeatedly #(rand-int 18))))
-          cart  (build-cart parts color)] 
-      (swap! all-cart assoc-in  [:carts] (conj (:carts @all-cart) cart))
-      (swap! all-cart update-in [:count] inc))))
+    (rng/withStream
+     (rng/streamFor :cart (:count @all-cart))
+     (let [;;parts (vec (take 5 (unique-random-numbers 15)))
+           parts (vec (take (:part-count @all-cart) 
+                            (repeatedly #(rng/uniformInt 18))))
+           cart  (build-cart parts color)] 
+       (swap! all-cart assoc-in  [:carts] (conj (:carts @all-cart) cart))
+       (swap! all-cart update-in [:count] inc)))))
 
 (defn draw-carts
   "renders all carts to the screen"
@@ -483,7 +487,7 @@
                  (let [cart (assoc-in cart [:data :is-transitioning] false)]
                    cart)
                  (update-in cart [:data :transition-count] inc))
-               (let [rand-direction (rand-int 8)
+               (let [rand-direction (rng/uniformInt 8)
                      cart (assoc-in cart [:data :is-transitioning] true)
                      cart (assoc-in cart [:data :transition-count] 0)
                      cart (assoc-in cart [:data :age] 0)
@@ -531,7 +535,7 @@
                      cart (assoc-in cart [:data :is-transitioning] true)]
                  cart)
                cart)
-        rand-continue (rand-int 500)
+        rand-continue (rng/uniformInt 500)
         cart (if (and (not (:is-transitioning (:data cart)))
                       (= (:transition-count (:data cart)) (- (/ (:part-width @all-cart) 2) 2))
                       (< rand-continue 400))
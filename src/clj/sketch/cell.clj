@@ -1,7 +1,9 @@
 (ns sketch.cell
   (:require [quil.core :refer :all]
             [clojure.java.shell :refer [sh]]
-            [sketch.calculations :as calc])
+            [sketch.calculations :as calc]
+            [sketch.rng :as rng]
+            [sketch.pixel_buffer :as pb])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
@@ -39,18 +41,20 @@
       starting-cell center-pixel starting-cell))))
 
 (defn drawCell
-  "draws a given cell"
-  [cell cell-color]
-  (doseq [p (:pix cell)]
-    (let [x (:x p) y (:y p) growable (:growable p)]
-      (if growable
-        (set-pixel x y cell-color)))))
+  "draws a given cell, into the given pixel buffer or straight to the
+   canvas"
+  ([cell cell-color]
+   (pb/withPixelBuffer [buffer]
+     (drawCell buffer cell cell-color)))
+  ([buffer cell cell-color]
+   (pb/fillPixels! buffer (filter :growable (:pix cell)) cell-color)))
 
 (defn drawCells
   "draws a given collection of cells"
   [cell-color]
-  (doseq [cell (:cells @cell-map)]
-    (drawCell cell (color (rand-int 255) (rand-int 255) (rand-int 255)))))
+  (pb/withPixelBuffer [buffer]
+    (doseq [cell (:cells @cell-map)]
+      (drawCell buffer cell (color (rng/uniformInt 255) (rng/uniformInt 255) (rng/uniformInt 255))))))
 
 (defn growCells
   "grows a given group of cells"
@@ -114,7 +118,7 @@
   []
   (doseq [cell (@cell-map :cells)]
     (let [cell-number (:number cell)
-          growth-color (color (rand-int 255) (rand-int 255) (rand-int 255))]
+          growth-color (color (rng/uniformInt 255) (rng/uniformInt 255) (rng/uniformInt 255))]
       (doseq [n (range (:growth-increment cell))]
         (swap! cell-map assoc-in [:cells cell-number :cell-wall] [])
         (let [xc (:x (:center-pix ((@cell-map :cells) cell-number)))
@@ -2,7 +2,9 @@
   (:require [quil.core :refer :all]
             [clojure.java.shell :refer [sh]]
             [sketch.calculations :as calc]
-            [sketch.grow :as grow])
+            [sketch.grow :as grow]
+            [sketch.metrics :as metrics]
+            [sketch.archive :as archive])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
@@ -72,35 +74,70 @@
 ;; ------------ Primary Growth Functions -----------------
 
 (defn applyCoralGrowth
-  [paths width height]
-  (let [new-paths (atom paths)]
-    (doseq [path-index (range (count @new-paths))] 
-      (doseq [node-index (range (count (:nodes (get @new-paths path-index))))]
+  "optionally bounded by a distance field, see grow/applyNodeBounds. fixed
+   nodes are kept in the paths unless an :archive atom is given to freeze
+   them into, in which case draw it along with the paths, see
+   draw/drawArchive"
+  ([paths width height]
+   (applyCoralGrowth paths width height {}))
+  ([paths width height {:keys [bounds bounds-margin archive] :or {bounds-margin 2}}]
+   (metrics/profileFrame
+    :coral
+    (let [new-paths (atom paths)
+          frozen (when archive @archive)
+          spatial-hash (metrics/measure :spatial-hash (grow/buildRepulsionHash paths))]
+      (doseq [path-index (range (count @new-paths))
+              :let [path-rng (grow/pathRandom (get @new-paths path-index) path-index)]]
+        (doseq [node-index (range (count (:nodes (get @new-paths path-index))))]
         
-        (swap! new-paths assoc-in [path-index :nodes node-index] (grow/applyBrownianMotion (get (:nodes (get @new-paths path-index)) node-index)))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :brownian-motion (grow/applyBrownianMotion (get (:nodes (get @new-paths path-index)) node-index) path-rng)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (grow/applyAttraction (get @new-paths path-index) node-index))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :attraction (grow/applyAttraction (get @new-paths path-index) node-index)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (grow/applyRepulsion @new-paths path-index node-index))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :repulsion (grow/applyArchiveRepulsion (get @new-paths path-index) (grow/applyRepulsion @new-paths path-index node-index spatial-hash) frozen)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (grow/applyAlignment (get @new-paths path-index) node-index))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :alignment (grow/applyAlignment (get @new-paths path-index) node-index)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (grow/applyBounds-2 (get (:nodes (get @new-paths path-index)) node-index) width height))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :bounds (grow/applyNodeBounds (get (:nodes (get @new-paths path-index)) node-index) width height bounds bounds-margin)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (grow/grow (get (:nodes (get @new-paths path-index)) node-index))))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :grow (grow/grow (get (:nodes (get @new-paths path-index)) node-index)))))
 
-       (swap! new-paths assoc-in [path-index] (grow/splitEdges (get @new-paths path-index)))
+         (metrics/addCount :nodes-before-split (count (:nodes (get @new-paths path-index))))
 
-       (swap! new-paths assoc-in [path-index] (grow/pruneNodes (get @new-paths path-index)))
+         (swap! new-paths assoc-in [path-index] (metrics/measure :split-edges (grow/splitEdges (get @new-paths path-index))))
 
-      ;;  (swap! new-paths assoc-in [path-index :nodes] (grow/removeFixed (:nodes (get @new-paths path-index))))
+         (metrics/addCount :nodes-after-split (count (:nodes (get @new-paths path-index))))
 
-       (when (> (rand-int 100) 50)
-         (swap! new-paths assoc-in [path-index] (grow/injectRandomNodeByCurvature (get @new-paths path-index))))
+         (swap! new-paths assoc-in [path-index] (metrics/measure :prune-nodes (grow/pruneNodes (get @new-paths path-index))))
 
-       (swap! new-paths update-in [path-index :age] inc))
+         (metrics/addCount :nodes-after-prune (count (:nodes (get @new-paths path-index))))
+
+        ;;  (swap! new-paths assoc-in [path-index :nodes] (grow/removeFixed (:nodes (get @new-paths path-index))))
+
+         (when archive
+           (swap! new-paths assoc-in [path-index] (metrics/measure :freeze (archive/freeze! archive (get @new-paths path-index)))))
+
+         (when (> (grow/randomInt path-rng 100) 50)
+           (swap! new-paths assoc-in [path-index] (metrics/measure :inject-by-curvature (grow/injectRandomNodeByCurvature (get @new-paths path-index) path-rng))))
+
+         (swap! new-paths update-in [path-index :age] (fnil inc 0)))
     
-    @new-paths))
+      @new-paths))))
+
+(defn applyCoralGrowthParallel
+  "parallel version of applyCoralGrowth, see grow/applyGrowthParallel.
+   fixed nodes are kept in place the same way applyCoralGrowth keeps them"
+  ([paths width height]
+   (applyCoralGrowthParallel paths width height {}))
+  ([paths width height opts]
+   (grow/applyGrowthParallel paths width height (assoc opts :remove-fixed? false))))
+
+(defn applyCoralGrowthFused
+  "fused version of applyCoralGrowth, see grow/applyGrowthFused"
+  ([paths width height]
+   (applyCoralGrowthFused paths width height {}))
+  ([paths width height opts]
+   (grow/applyGrowthFused paths width height (assoc opts :remove-fixed? false))))
 
 (defn seed-coral
   "initializes coral growth"
@@ -114,6 +151,3 @@
              ]
         paths (applyCoralGrowth p-4 w h)]
     paths))
-
-
-
@@ -0,0 +1,360 @@
+(ns sketch.delaunay
+  (:require [sketch.mesh :as mesh]
+            [sketch.raster :as raster])
+  (:import [java.util Arrays]))
+
+;; ------------ Delaunay Triangulation -----------------
+;; Incremental Delaunay triangulation for point sets the size stippling
+;; needs, 100k points and more. Points are added one at a time inside a
+;; triangle that encloses them all. The triangle holding the new point is
+;; found by walking from the last triangle split, it is split at the
+;; point, and the edges around the point are flipped until no triangle's
+;; circumcircle holds another point (Lawson). Points go in along a
+;; Hilbert curve so each walk starts next to where it ends, which keeps
+;; locating a point close to constant time.
+;;
+;; Triangles are half-edges in flat arrays laid out like sketch.mesh, and
+;; the result is a mesh, so anything that walks a mesh walks these too.
+
+(defn- orient
+  "twice the signed area of triangle a b c, positive when it winds the
+   same way as the triangles built here"
+  [^doubles xs ^doubles ys a b c]
+  (let [a (long a) b (long b) c (long c)
+        ax (aget xs a)
+        ay (aget ys a)]
+    (- (* (- (aget xs b) ax) (- (aget ys c) ay))
+       (* (- (aget ys b) ay) (- (aget xs c) ax)))))
+
+(defn- inCircle?
+  "true when d lies inside the circumcircle of triangle a b c"
+  [^doubles xs ^doubles ys a b c d]
+  (let [a (long a) b (long b) c (long c) d (long d)
+        dx (aget xs d)
+        dy (aget ys d)
+        ax (- (aget xs a) dx) ay (- (aget ys a) dy)
+        bx (- (aget xs b) dx) by (- (aget ys b) dy)
+        cx (- (aget xs c) dx) cy (- (aget ys c) dy)
+        al (+ (* ax ax) (* ay ay))
+        bl (+ (* bx bx) (* by by))
+        cl (+ (* cx cx) (* cy cy))]
+    (pos? (+ (* ax (- (* by cl) (* bl cy)))
+             (- (* ay (- (* bx cl) (* bl cx))))
+             (* al (- (* bx cy) (* by cx)))))))
+
+(defn- hilbertIndex
+  "position of cell x y along a hilbert curve filling a 1024 by 1024 grid"
+  ^long [^long x ^long y]
+  (loop [s 512 x x y y d 0]
+    (if (zero? s)
+      d
+      (let [rx (if (zero? (bit-and x s)) 0 1)
+            ry (if (zero? (bit-and y s)) 0 1)
+            d (+ d (* s s (bit-xor (* 3 rx) ry)))
+            ;; turn the quadrant so the curve continues into the next one
+            flip? (and (zero? ry) (= 1 rx))
+            x (if flip? (- 1023 x) x)
+            y (if flip? (- 1023 y) y)]
+        (if (zero? ry)
+          (recur (quot s 2) y x d)
+          (recur (quot s 2) x y d))))))
+
+(defn- bounds
+  "[x0 y0 x1 y1] bounding the first n points of xs ys"
+  [^doubles xs ^doubles ys n]
+  (loop [i 0
+         x0 Double/POSITIVE_INFINITY y0 Double/POSITIVE_INFINITY
+         x1 Double/NEGATIVE_INFINITY y1 Double/NEGATIVE_INFINITY]
+    (if (< i (long n))
+      (let [x (aget xs i)
+            y (aget ys i)]
+        (recur (inc i) (min x0 x) (min y0 y) (max x1 x) (max y1 y)))
+      [x0 y0 x1 y1])))
+
+(defn- hilbertOrder
+  "the first n points of xs ys in the order a hilbert curve over their
+   bounds meets them"
+  [^doubles xs ^doubles ys n]
+  (let [n (long n)
+        keys (long-array n)
+        [x0 y0 x1 y1] (bounds xs ys n)
+        x0 (double x0)
+        y0 (double y0)
+        scale (/ 1023.0 (max 1e-9 (- (double x1) x0) (- (double y1) y0)))]
+    (dotimes [i n]
+      (let [cx (long (* scale (- (aget xs i) x0)))
+            cy (long (* scale (- (aget ys i) y0)))]
+        (aset keys i (bit-or (bit-shift-left (hilbertIndex cx cy) 32) i))))
+    (Arrays/sort keys)
+    (int-array (map #(bit-and % 0xFFFFFFFF) keys))))
+
+(defn- link!
+  [^ints twin a b]
+  (aset twin (int a) (int b))
+  (when-not (neg? (long b))
+    (aset twin (int b) (int a))))
+
+(defn- setTriangle!
+  [^ints origin t a b c]
+  (let [h (* 3 (long t))]
+    (aset origin h (int a))
+    (aset origin (+ h 1) (int b))
+    (aset origin (+ h 2) (int c))))
+
+(defn- legalize!
+  "flips edge a until the triangles around a new point are Delaunay. a
+   lies opposite the new point in its triangle"
+  [xs ys ^ints origin ^ints twin a]
+  (let [a (long a)
+        b (aget twin a)]
+    (when-not (neg? b)
+      (let [a0 (- a (rem a 3))
+            b0 (- b (rem b 3))
+            al (+ a0 (rem (inc a) 3))
+            ar (+ a0 (rem (+ a 2) 3))
+            bl (+ b0 (rem (+ b 2) 3))
+            br (+ b0 (rem (inc b) 3))
+            p (aget origin ar)
+            pr (aget origin a)
+            pl (aget origin al)
+            opposite (aget origin bl)]
+        (when (inCircle? xs ys pr pl p opposite)
+          ;; swap the diagonal of the two triangles, then check the two
+          ;; edges the swap brought next to the new point
+          (aset origin a opposite)
+          (aset origin b p)
+          (link! twin a (aget twin bl))
+          (link! twin b (aget twin ar))
+          (link! twin ar bl)
+          (legalize! xs ys origin twin a)
+          (legalize! xs ys origin twin br))))))
+
+(defn- splitTriangle!
+  "splits triangle t at point p into t, t1 and t2"
+  [xs ys ^ints origin ^ints twin t t1 t2 p]
+  (let [h (* 3 (long t))
+        h1 (* 3 (long t1))
+        h2 (* 3 (long t2))
+        a (aget origin h)
+        b (aget origin (+ h 1))
+        c (aget origin (+ h 2))
+        bc (aget twin (+ h 1))
+        ca (aget twin (+ h 2))]
+    (setTriangle! origin t a b p)
+    (setTriangle! origin t1 b c p)
+    (setTriangle! origin t2 c a p)
+    (link! twin h1 bc)
+    (link! twin h2 ca)
+    (link! twin (+ h 1) (+ h1 2))
+    (link! twin (+ h1 1) (+ h2 2))
+    (link! twin (+ h2 1) (+ h 2))
+    (doseq [h [h h1 h2]]
+      (legalize! xs ys origin twin h))))
+
+(defn- splitEdge!
+  "splits the two triangles on either side of half-edge g at point p,
+   which lies on it, into four. the new triangles are t1 and t2"
+  [xs ys ^ints origin ^ints twin g t1 t2 p]
+  (let [g (long g)
+        k (aget twin g)
+        t (quot g 3)
+        u (quot k 3)
+        a (aget origin g)
+        b (aget origin (mesh/nextEdge g))
+        c (aget origin (mesh/prevEdge g))
+        d (aget origin (mesh/prevEdge k))
+        bc (aget twin (mesh/nextEdge g))
+        ca (aget twin (mesh/prevEdge g))
+        ad (aget twin (mesh/nextEdge k))
+        db (aget twin (mesh/prevEdge k))
+        h (* 3 t)
+        h1 (* 3 (long t1))
+        h2 (* 3 (long t2))
+        hu (* 3 u)]
+    (setTriangle! origin t c a p)
+    (setTriangle! origin t1 b c p)
+    (setTriangle! origin u a d p)
+    (setTriangle! origin t2 d b p)
+    (link! twin h ca)
+    (link! twin h1 bc)
+    (link! twin hu ad)
+    (link! twin h2 db)
+    (link! twin (+ h 1) (+ hu 2))
+    (link! twin (+ h 2) (+ h1 1))
+    (link! twin (+ h1 2) (+ h2 1))
+    (link! twin (+ hu 1) (+ h2 2))
+    (doseq [h [h h1 hu h2]]
+      (legalize! xs ys origin twin h))))
+
+(defn- locate
+  "walks from triangle t toward point p until reaching the triangle that
+   holds it. [t h] with h the half-edge of t that p lies on, or -1"
+  [xs ys ^ints origin ^ints twin t p]
+  (loop [t (long t)]
+    (let [h0 (* 3 t)
+          [across on] (loop [i 0 on -1]
+                        (if (= i 3)
+                          [-1 on]
+                          (let [h (+ h0 i)
+                                o (double (orient xs ys (aget origin h) (aget origin (mesh/nextEdge h)) p))]
+                            (cond
+                              (neg? o) [h on]
+                              (zero? o) (recur (inc i) h)
+                              :else (recur (inc i) on)))))]
+      (if (neg? (long across))
+        [t on]
+        (recur (quot (aget twin (int across)) 3))))))
+
+(defn- cornerAt?
+  "true when point p sits exactly on a corner of triangle t"
+  [^doubles xs ^doubles ys ^ints origin t p]
+  (let [p (long p)
+        h (* 3 (long t))
+        same? (fn [v] (and (== (aget xs v) (aget xs p)) (== (aget ys v) (aget ys p))))]
+    (or (same? (aget origin h))
+        (same? (aget origin (+ h 1)))
+        (same? (aget origin (+ h 2))))))
+
+(defn triangulate
+  "Delaunay triangulation of {:x :y} points as a mesh, with vertex i
+   being point i and its id i. points repeating an earlier point are left
+   out of the triangles, and have no outgoing edges. nil for fewer than
+   three points"
+  [points]
+  (let [points (vec points)
+        n (count points)]
+    (when (>= n 3)
+      (let [xs (double-array (+ n 3))
+            ys (double-array (+ n 3))
+            _ (dotimes [i n]
+                (aset xs i (double (:x (points i))))
+                (aset ys i (double (:y (points i)))))
+            ^ints order (hilbertOrder xs ys n)
+            ;; the enclosing triangle, far enough out that its corners
+            ;; hardly bend the triangles along the hull
+            [x0 y0 x1 y1] (bounds xs ys n)
+            size (max 1.0 (- x1 x0) (- y1 y0))
+            cx (/ (+ x0 x1) 2.0)
+            cy (/ (+ y0 y1) 2.0)
+            reach (* 100.0 size)
+            _ (do (aset xs n (- cx reach)) (aset ys n (- cy reach))
+                  (aset xs (+ n 1) (+ cx reach)) (aset ys (+ n 1) (- cy reach))
+                  (aset xs (+ n 2) cx) (aset ys (+ n 2) (+ cy reach)))
+            ;; every point added makes two more triangles
+            capacity (inc (* 2 n))
+            origin (int-array (* 3 capacity))
+            twin (int-array (* 3 capacity) -1)
+            _ (if (pos? (orient xs ys n (+ n 1) (+ n 2)))
+                (setTriangle! origin 0 n (+ n 1) (+ n 2))
+                (setTriangle! origin 0 n (+ n 2) (+ n 1)))
+            triangles (loop [k 0 start 0 triangles 1]
+                        (if (< k n)
+                          (let [p (aget order k)
+                                [t on] (locate xs ys origin twin start p)
+                                t (long t)]
+                            (cond
+                              (cornerAt? xs ys origin t p) (recur (inc k) t triangles)
+                              (neg? (long on)) (do (splitTriangle! xs ys origin twin t triangles (inc triangles) p)
+                                                   (recur (inc k) t (+ triangles 2)))
+                              :else (do (splitEdge! xs ys origin twin on triangles (inc triangles) p)
+                                        (recur (inc k) t (+ triangles 2)))))
+                          triangles))
+            ;; drop the triangles touching the enclosing corners
+            kept (int-array triangles -1)
+            faces (loop [t 0 faces 0]
+                    (if (< t triangles)
+                      (if (and (< (aget origin (* 3 t)) n)
+                               (< (aget origin (+ 1 (* 3 t))) n)
+                               (< (aget origin (+ 2 (* 3 t))) n))
+                        (do (aset kept t faces) (recur (inc t) (inc faces)))
+                        (recur (inc t) faces))
+                      faces))
+            origin' (int-array (* 3 faces))
+            twin' (int-array (* 3 faces) -1)]
+        (dotimes [t triangles]
+          (let [f (aget kept t)]
+            (when-not (neg? f)
+              (dotimes [i 3]
+                (let [h (+ (* 3 t) i)
+                      g (+ (* 3 f) i)
+                      other (aget twin h)]
+                  (aset origin' g (aget origin h))
+                  (when-not (neg? (aget kept (quot other 3)))
+                    (aset twin' g (+ (* 3 (aget kept (quot other 3))) (rem other 3)))))))))
+        (let [ids (vec (range n))]
+          (mesh/fromArrays ids ids (Arrays/copyOf xs n) (Arrays/copyOf ys n) origin' twin'))))))
+
+(defn triangles
+  "the triangles of a mesh as [a b c] vectors of {:x :y} corners"
+  [mesh]
+  (for [f (range (mesh/faceCount mesh))]
+    (mapv #(mesh/position mesh (mesh/origin mesh (+ (* 3 f) %))) (range 3))))
+
+;; ------------ Voronoi Cells -----------------
+;; The Voronoi cell of a point is the part of the plane nearer to it than
+;; to any other point. Its corners are the circumcentres of the Delaunay
+;; triangles around the point, taken in order around it.
+
+(defn circumcentres
+  "[xs ys] double arrays holding the circumcentre of every face of a mesh"
+  [mesh]
+  (let [faces (mesh/faceCount mesh)
+        ^doubles xs (:xs mesh)
+        ^doubles ys (:ys mesh)
+        ^ints origin (:origin mesh)
+        cxs (double-array faces)
+        cys (double-array faces)]
+    (dotimes [f faces]
+      (let [a (aget origin (* 3 f))
+            b (aget origin (+ 1 (* 3 f)))
+            c (aget origin (+ 2 (* 3 f)))
+            ax (aget xs a) ay (aget ys a)
+            bx (- (aget xs b) ax) by (- (aget ys b) ay)
+            cx (- (aget xs c) ax) cy (- (aget ys c) ay)
+            bl (+ (* bx bx) (* by by))
+            cl (+ (* cx cx) (* cy cy))
+            d (* 2.0 (- (* bx cy) (* by cx)))]
+        (aset cxs f (+ ax (/ (- (* cy bl) (* by cl)) d)))
+        (aset cys f (+ ay (/ (- (* bx cl) (* cx bl)) d)))))
+    [cxs cys]))
+
+(defn cell
+  "corners of the Voronoi cell of vertex v as {:x :y}, given the mesh's
+   circumcentres. nil for a vertex on the hull, whose cell is open"
+  [mesh [^doubles cxs ^doubles cys] v]
+  (let [edges (mesh/outgoing mesh v)]
+    (when (and (seq edges) (not (mesh/boundary? mesh (first edges))))
+      (mapv (fn [h]
+              (let [f (mesh/face h)]
+                {:x (aget cxs f) :y (aget cys f)}))
+            edges))))
+
+(defn voronoi
+  "Voronoi cells of {:x :y} points over a width by height canvas, a vector
+   holding the corners of each point's cell. four points well outside the
+   canvas fence the rest in so every cell is closed. nil for a point
+   repeating an earlier one"
+  [points width height]
+  (let [points (vec points)
+        fence [{:x (- width) :y (- height)} {:x (* 2 width) :y (- height)}
+               {:x (* 2 width) :y (* 2 height)} {:x (- width) :y (* 2 height)}]
+        mesh (triangulate (into points fence))
+        centres (circumcentres mesh)]
+    (mapv #(cell mesh centres %) (range (count points)))))
+
+(defn cellSpans
+  "spans covering a cell, clipped to a width by height raster"
+  [cell width height]
+  (let [[a & more] (map (juxt :x :y) cell)]
+    (vec (mapcat (fn [b c] (raster/triangleSpans [a b c] width height))
+                 more (rest more)))))
+
+(defn shadeCells
+  "fills every cell with the average colour of the argb pixels beneath it"
+  [^ints pixels width height cells]
+  (doseq [c cells
+          :when c]
+    (let [spans (cellSpans c width height)
+          [r g b] (raster/spanAverage pixels width spans)]
+      (raster/fillSpans pixels width spans
+                        (bit-or 0xFF000000 (bit-shift-left r 16) (bit-shift-left g 8) b)))))
@@ -0,0 +1,187 @@
+(ns sketch.distance_field)
+
+;; ------------ Distance Field -----------------
+;; A raster of signed distances to the edge of a region growth is allowed
+;; to fill. Distances are negative inside the region and positive outside,
+;; so containment is one lookup and the gradient points away from the
+;; region, giving the direction to push a stray node back along. The cost
+;; of a query does not depend on how complicated the region is.
+;;
+;; The raster is padded by one pixel of outside on every side so a region
+;; touching the edge of the mask is still closed.
+
+(defrecord DistanceField [width height ^floats distances])
+
+(def ^:private ^:const INF 1e20)
+
+(defn- transformLine
+  "squared euclidean distance transform of one row or column (Felzenszwalb
+   and Huttenlocher). reads the n values of f and writes the result to d"
+  [^doubles f ^doubles d ^longs v ^doubles z n]
+  (let [n (long n)]
+    (aset v 0 0)
+    (aset z 0 (- INF))
+    (aset z 1 INF)
+    (loop [q 1 k 0]
+      (when (< q n)
+        (let [fq (+ (aget f q) (* q q))
+              ;; drop parabolas hidden by the one rooted at q
+              k (long (loop [k k]
+                        (let [vk (aget v k)
+                              s (/ (- fq (+ (aget f vk) (* vk vk))) (* 2.0 (- q vk)))]
+                          (if (<= s (aget z k))
+                            (recur (dec k))
+                            k))))
+              vk (aget v k)
+              s (/ (- fq (+ (aget f vk) (* vk vk))) (* 2.0 (- q vk)))
+              k (inc k)]
+          (aset v k q)
+          (aset z k s)
+          (aset z (inc k) INF)
+          (recur (inc q) k))))
+    (loop [q 0 k 0]
+      (when (< q n)
+        (let [k (long (loop [k k]
+                        (if (< (aget z (inc k)) q) (recur (inc k)) k)))
+              vk (aget v k)]
+          (aset d q (+ (* (- q vk) (- q vk)) (aget f vk)))
+          (recur (inc q) k))))))
+
+(defn- squaredDistances
+  "squared distance from every cell to the nearest cell where feature? is
+   true, over a w by h grid of booleans"
+  [^booleans feature? w h]
+  (let [w (long w)
+        h (long h)
+        n (max w h)
+        out (double-array (* w h))
+        f (double-array n)
+        d (double-array n)
+        v (long-array n)
+        z (double-array (inc n))]
+    (dotimes [i (* w h)]
+      (aset out i (if (aget feature? i) 0.0 INF)))
+    (dotimes [x w]
+      (dotimes [y h] (aset f y (aget out (+ x (* y w)))))
+      (transformLine f d v z h)
+      (dotimes [y h] (aset out (+ x (* y w)) (aget d y))))
+    (dotimes [y h]
+      (System/arraycopy out (* y w) f 0 w)
+      (transformLine f d v z w)
+      (System/arraycopy d 0 out (* y w) w))
+    out))
+
+(defn fromMask
+  "builds a field from a predicate telling whether pixel x y of a width by
+   height raster belongs to the region"
+  [width height inside?]
+  (let [w (+ 2 width)
+        h (+ 2 height)
+        inside (boolean-array (* w h))
+        outside (boolean-array (* w h))
+        distances (float-array (* w h))]
+    (dotimes [y h]
+      (dotimes [x w]
+        (let [i (+ x (* y w))
+              in? (boolean (and (> x 0) (> y 0) (<= x width) (<= y height)
+                                (inside? (dec x) (dec y))))]
+          (aset inside i in?)
+          (aset outside i (not in?)))))
+    (let [to-outside (squaredDistances outside w h)
+          to-inside (squaredDistances inside w h)]
+      ;; the edge lies half a pixel from the centre of the last pixel inside
+      (dotimes [i (* w h)]
+        (aset distances i (float (if (aget inside i)
+                                   (- 0.5 (Math/sqrt (aget ^doubles to-outside i)))
+                                   (- (Math/sqrt (aget ^doubles to-inside i)) 0.5))))))
+    (DistanceField. width height distances)))
+
+(defn fromPixels
+  "builds a field from an argb pixel array, such as the pixels of an
+   existing painting, where void? picks out the pixels to grow into"
+  [^ints pixels width height void?]
+  (fromMask width height (fn [x y] (void? (aget pixels (+ x (* y width)))))))
+
+(defn- polygonSpans
+  "x coordinates where the horizontal line at y crosses the polygon, sorted"
+  [points y]
+  (sort
+   (keep (fn [[[x0 y0] [x1 y1]]]
+           (when (not= (<= y0 y) (<= y1 y))
+             (+ x0 (* (- y y0) (/ (- x1 x0) (- y1 y0))))))
+         (map vector points (concat (rest points) (take 1 points))))))
+
+(defn fromPolygon
+  "builds a field for the inside of a closed polygon given as [x y] points,
+   using the even-odd rule"
+  [width height points]
+  (let [mask (boolean-array (* width height))]
+    (dotimes [y height]
+      (doseq [[x0 x1] (partition 2 (polygonSpans points (+ y 0.5)))]
+        (doseq [x (range (max 0 (long (Math/ceil (- x0 0.5))))
+                         (min width (inc (long (Math/floor (- x1 0.5))))))]
+          (aset mask (+ x (* y width)) true))))
+    (fromMask width height (fn [x y] (aget mask (+ x (* y width)))))))
+
+(defn canvasField
+  "field for the whole canvas inset by margin, the region applyBounds-2 keeps
+   nodes in"
+  [width height margin]
+  (fromMask width height (fn [x y] (and (>= x margin) (>= y margin)
+                                        (< x (- width margin)) (< y (- height margin))))))
+
+(defn- cellDistance
+  [^DistanceField field ^long x ^long y]
+  (aget ^floats (.distances field) (+ x (* y (+ 2 (long (.width field)))))))
+
+(defn distanceAt
+  "signed distance to the edge of the region at x y, interpolated between
+   pixels. points off the raster measure from its padded border"
+  ^double [^DistanceField field ^double x ^double y]
+  (let [max-x (double (inc (long (.width field))))
+        max-y (double (inc (long (.height field))))
+        ;; padded cell i holds the distance at pixel i - 1
+        fx (+ x 1.0)
+        fy (+ y 1.0)
+        cx (Math/min (Math/max fx 0.0) max-x)
+        cy (Math/min (Math/max fy 0.0) max-y)
+        overshoot (Math/hypot (- fx cx) (- fy cy))
+        x0 (long (Math/min (Math/floor cx) (dec max-x)))
+        y0 (long (Math/min (Math/floor cy) (dec max-y)))
+        tx (- cx x0)
+        ty (- cy y0)
+        top (+ (* (- 1.0 tx) (cellDistance field x0 y0)) (* tx (cellDistance field (inc x0) y0)))
+        bottom (+ (* (- 1.0 tx) (cellDistance field x0 (inc y0))) (* tx (cellDistance field (inc x0) (inc y0))))]
+    (+ overshoot (* (- 1.0 ty) top) (* ty bottom))))
+
+(defn inside?
+  "true when x y lies at least margin inside the region"
+  [field x y margin]
+  (<= (distanceAt field x y) (- (double margin))))
+
+(defn gradient
+  "unit vector pointing away from the region at x y"
+  [field x y]
+  (let [x (double x)
+        y (double y)
+        gx (- (distanceAt field (+ x 1.0) y) (distanceAt field (- x 1.0) y))
+        gy (- (distanceAt field x (+ y 1.0)) (distanceAt field x (- y 1.0)))
+        length (Math/hypot gx gy)]
+    (if (> length 1e-9)
+      [(/ gx length) (/ gy length)]
+      [0.0 0.0])))
+
+(defn pushInside
+  "moves x y back along the gradient until it lies margin inside the
+   region, returning the new [x y]"
+  [field x y margin]
+  (let [margin (double margin)]
+    (loop [x (double x) y (double y) steps 0]
+      (let [d (distanceAt field x y)]
+        (if (or (<= d (- margin)) (>= steps 4))
+          [x y]
+          (let [[gx gy] (gradient field x y)
+                step (+ d margin)]
+            (if (and (zero? gx) (zero? gy))
+              [x y]
+              (recur (- x (* gx step)) (- y (* gy step)) (inc steps)))))))))
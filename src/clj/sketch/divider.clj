@@ -1,19 +1,23 @@
 (ns sketch.divider
   (:require [quil.core :refer :all]
             [clojure.java.shell :refer [sh]]
-            [sketch.calculations :as calc])
+            [sketch.calculations :as calc]
+            [sketch.rng :as rng]
+            [sketch.integral :as integral]
+            [sketch.pixel_buffer :as pb])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
   (:use [clojure.set :only [union]])
   (:use [clojure.contrib.map-utils :only [deep-merge-with]])
-  (:import [org.apache.commons.math3.distribution ParetoDistribution])
+  (:import [org.apache.commons.math3.distribution ParetoDistribution]
+           [java.util.concurrent ForkJoinTask])
 
   (:import [processing.core PShape PGraphics]))
 
 
 (def square-map (atom {:square-count 0 :squares []}))
-(defrecord Square [number iteration x1 y1 x2 y2 pix])
+(defrecord Square [number iteration x1 y1 x2 y2])
 
 ;; ----------- Square division functions ------------
 (defn drawVerticalLine
@@ -110,19 +114,6 @@
   (swap! square-map update-in [:square-count] inc)
   (swap! square-map assoc-in [:squares] (conj (@square-map :squares) new-square)))
 
-(defn getSquarePixels
-  "retrieves all of the pixels contained within a given square"
-  [x1 y1 x2 y2]
-  (let [[xmin ymin xmax ymax] [x1 y1 x2 y2]]
-    (filter identity
-            (doall
-             (map
-              (fn [[x y]]
-                (conj {:x x :y y}))
-              (for [y (range ymin ymax)
-                    x (range xmin xmax)]
-                [x y]))))))
-
 (defn divideGoldenRectangles
   "recursively divides plane by into random rectangles based on the golden ratio"
   [x y width height depth desiredDepth]
@@ -130,8 +121,8 @@
         y1 y
         x2 width
         y2 height
-        rand1 (rand-int 1000)
-        rand2 (rand-int 1618)
+        rand1 (rng/uniformInt 1000)
+        rand2 (rng/uniformInt 1618)
         goldenWidth (+ (calc/calculateGoldenRatio (- x2 x1)) x1)
         goldenHeight (+ (calc/calculateGoldenRatio (- y2 y1)) y1)]
     (if (< depth desiredDepth)
@@ -141,31 +132,134 @@
             (divideGoldenRectangles goldenWidth y1 x2 y2 (inc depth) desiredDepth)
             (addSquare
              (Square.
-              (@square-map :square-count) depth x1 y1 x2 y2
-              (getSquarePixels x1 y1 x2 y2))))
+              (@square-map :square-count) depth x1 y1 x2 y2)))
           (if (> rand2 (/ (* depth depth) 2))
             (divideGoldenRectangles x1 y1 goldenWidth y2 (inc depth) desiredDepth)
             (addSquare
              (Square.
-              (@square-map :square-count) depth x1 y1 x2 y2
-              (getSquarePixels x1 y1 x2 y2)))))
+              (@square-map :square-count) depth x1 y1 x2 y2))))
         (do
           (if (> rand1 (/ (* depth depth) 2))
             (divideGoldenRectangles x1 goldenHeight x2 y2 (inc depth) desiredDepth)
             (addSquare
              (Square.
-              (@square-map :square-count) depth x1 y1 x2 y2
-              (getSquarePixels x1 y1 x2 y2))))
+              (@square-map :square-count) depth x1 y1 x2 y2)))
           (if (> rand2 (/ (* depth depth) 2))
             (divideGoldenRectangles x1 y1 x2 goldenHeight (inc depth) desiredDepth)
             (addSquare
              (Square.
-              (@square-map :square-count) depth x1 y1 x2 y2
-              (getSquarePixels x1 y1 x2 y2))))))
+              (@square-map :square-count) depth x1 y1 x2 y2)))))
       (addSquare
        (Square.
-        (@square-map :square-count) depth x1 y1 x2 y2
-        (getSquarePixels x1 y1 x2 y2))))))
+        (@square-map :square-count) depth x1 y1 x2 y2)))))
+
+;; ----------- Quadtree division functions ------------
+;; Splits a region into quarters while the colour variance beneath it is
+;; above a threshold, read in constant time from an integral image. A leaf
+;; budget caps the number of squares: each split shares its budget between
+;; its quarters in proportion to their colour error, so the busiest parts
+;; of the image get the most squares and the run time follows the budget
+;; rather than the image size. The top levels are divided on the
+;; fork/join pool.
+
+(defn- quarters
+  "the quarters of box x1 y1 x2 y2 on the pixel grid. an axis shorter
+   than twice min-size is not halved"
+  [x1 y1 x2 y2 min-size]
+  (let [halves (fn [a b] (if (>= (- b a) (* 2 min-size))
+                           [[a (quot (+ a b) 2)] [(quot (+ a b) 2) b]]
+                           [[a b]]))]
+    (for [[y1 y2] (halves y1 y2)
+          [x1 x2] (halves x1 x2)]
+      [x1 y1 x2 y2])))
+
+(defn- boxError
+  "summed squared colour error of a box, its variance times its area"
+  [image [x1 y1 x2 y2]]
+  (* (integral/boxVariance image x1 y1 x2 y2) (- x2 x1) (- y2 y1)))
+
+(defn- shareBudget
+  "splits a leaf budget between boxes, one leaf each and the rest in
+   proportion to their errors"
+  [budget errors]
+  (let [total (double (reduce + errors))
+        spare (- budget (count errors))]
+    (mapv #(if (pos? total)
+             (inc (long (* spare (/ % total))))
+             1)
+          errors)))
+
+(defn- quadtreeLeaves
+  "[depth x1 y1 x2 y2] of every leaf below box x1 y1 x2 y2"
+  [image [x1 y1 x2 y2 :as box] depth budget options]
+  (let [{:keys [threshold min-size fork-depth]} options
+        children (quarters x1 y1 x2 y2 min-size)]
+    (if (or (= 1 (count children))
+            (< budget (count children))
+            (<= (integral/boxVariance image x1 y1 x2 y2) threshold))
+      [(into [depth] box)]
+      (let [budgets (shareBudget budget (map #(boxError image %) children))
+            divide (fn [child child-budget]
+                     (quadtreeLeaves image child (inc depth) child-budget options))]
+        (if (< depth fork-depth)
+          (let [tasks (mapv (fn [child child-budget]
+                              (.fork (ForkJoinTask/adapt ^Callable (fn [] (divide child child-budget)))))
+                            children budgets)]
+            (into [] (mapcat #(.join ^ForkJoinTask %)) tasks))
+          (into [] (mapcat divide children budgets)))))))
+
+(defn divideQuadtree
+  "divides the whole of an integral image into squares by colour, adds
+   them to square-map and returns them. options are :threshold, the
+   colour variance a square may keep (400), :max-leaves, the most squares
+   to make (10000), :min-size, the smallest side in pixels (2), and
+   :fork-depth, how many levels are divided in parallel (4)"
+  ([image]
+   (divideQuadtree image {}))
+  ([image options]
+   (let [options (merge {:threshold 400 :max-leaves 10000 :min-size 2 :fork-depth 4} options)
+         leaves (quadtreeLeaves image [0 0 (:width image) (:height image)] 0
+                                (:max-leaves options) options)
+         first-number (:square-count @square-map)
+         squares (mapv (fn [number [depth x1 y1 x2 y2]]
+                         (Square. number depth x1 y1 x2 y2))
+                       (iterate inc first-number)
+                       leaves)]
+     (swap! square-map #(-> %
+                            (update :square-count + (count squares))
+                            (update :squares into squares)))
+     squares)))
+
+;; ----------- Square colouring functions ------------
+;; Squares only keep their corners. Their colours come from summed-area
+;; tables of the image (see sketch.integral), so averaging a square costs
+;; the same however large it is, and filling it is one rectangle fill.
 
+(defn squareBounds
+  "[x0 y0 x1 y1] pixel bounds of a square, clipped to a width by height
+   image. pixels whose centres lie inside belong to the square, the same
+   rule the triangle rasterizer follows"
+  [square width height]
+  (let [edge (fn [v limit] (max 0 (min (long limit) (long (Math/ceil (- (double v) 0.5))))))]
+    [(edge (:x1 square) width) (edge (:y1 square) height)
+     (edge (:x2 square) width) (edge (:y2 square) height)]))
 
+(defn squareAverage
+  "average [r g b] of the image beneath a square, from its integral image"
+  [image square]
+  (let [[x0 y0 x1 y1] (squareBounds square (:width image) (:height image))]
+    (integral/boxMean image x0 y0 x1 y1)))
 
+(defn drawSquareMapAverage
+  "fills every square of square-map with the average colour of the pixels
+   beneath it. the pixels are locked once, summed into an integral image
+   and committed once"
+  []
+  (pb/withPixelBuffer [buffer]
+    (let [w (:width buffer)
+          h (:height buffer)
+          image (integral/fromPixels (:pixels buffer) w h)]
+      (doseq [square (:squares @square-map)]
+        (let [[r g b] (squareAverage image square)
+              [x0 y0 x1 y1] (squareBounds square w h)]
+          (pb/fillRect! buffer x0 y0 x1 y1 (color r g b)))))))
@@ -1,15 +1,15 @@
 (ns sketch.draw
   (:require [quil.core :refer :all]
-            [sketch.path :as path])
+            [sketch.path :as path]
+            [sketch.archive :as archive]
+            [sketch.pixel_buffer :as pb])
   (:use [clojure.pprint]))
 
 (defn fillShape
   "colors the entire shape with a given color"
   [shape c]
-  (let [pixel-collection (:pix shape)]
-    (doseq [pixel pixel-collection]
-      (let [x (:x pixel) y (:y pixel)]
-        (set-pixel x y c)))))
+  (pb/withPixelBuffer [buffer]
+    (pb/fillPixels! buffer (:pix shape) c)))
 
 (defn colorSpectrum
   "changes the color of node output to RGB spectrum R: @ 0 V: @ length of vector"
@@ -60,6 +60,15 @@
             (ellipse x y 2 2)
             (stroke (get node-color node-index) 360 360)))))))
 
+(defn drawArchive
+  "draws the frozen structure held in an archive, see sketch.archive, so
+   nodes frozen out of the live paths stay in the image"
+  [frozen]
+  (doseq [{:keys [x0 y0 x1 y1]} (archive/segments frozen)]
+    (if (and (= x0 x1) (= y0 y1))
+      (point x0 y0)
+      (line x0 y0 x1 y1))))
+
 (defn printPosition
   [p]
   (println "Position:" (map
@@ -1,7 +1,6 @@
 (ns sketch.dynamic
   (:require [clojure.core.async.impl.ioc-macros]
             [quil.core :refer :all]
-            [clojure.java.shell :refer [sh]]
             [clojure.core.async :as async]
             [sketch.hitomezashi :as hito]
             [sketch.divider :as divi]
@@ -13,7 +12,10 @@
             [sketch.draw :as draw]
             [sketch.path :as path]
             [sketch.ray_tracer :as rt]
-            [sketch.select :as select])
+            [sketch.select :as select]
+            [sketch.tiff :as tiff]
+            [sketch.thumbnail :as thumb]
+            [sketch.export :as export])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
@@ -73,22 +75,28 @@
   )
 
 (defn export-JPG
-  "exports the canvas picture to a given folder"
+  "exports the canvas picture to a given folder. the canvas is copied and
+   written by the export queue, the copy is returned"
   [file-name]
-  (let [filename (str "sketch-" file-name ".jpg")]
-    (save (str "saved-images/" filename))
-    (println "Done with" filename)))  
+  (let [filename (str "sketch-" file-name ".jpg")
+        snapshot (get-pixel)]
+    (export/enqueue filename #(export/writeJPG (str "saved-images/" filename) snapshot))
+    snapshot))
 
 (defn export-Canvas
-  "exports the canvas picture to a given folder"
+  "exports the canvas picture as an lzw tiff along with a 1000 pixel
+   thumbnail. the pixels are copied and written by the export queue"
   [file-name]
-  (save (str "sketch-" file-name ".tif"))
   (let [filename (str "sketch-" file-name ".tif")
-        thumbnail (str "sketch-" file-name "-1000.tif")]
-    (save filename)
-    (sh "convert" "-LZW" filename filename)
-    (sh "convert" "-scale" "1000x1000" filename thumbnail)
-    (println "Done with image" file-name)))
+        thumbnail (str "sketch-" file-name "-1000.tif")
+        pixels (aclone ^ints (pixels))
+        w (width)
+        h (height)]
+    (export/enqueue (str "image " file-name)
+                    (fn []
+                      (tiff/writePixels filename pixels w h true)
+                      (let [[tw th] (thumb/fitSize w h 1000)]
+                        (tiff/writePixels thumbnail (thumb/shrink pixels w h tw th) tw th true))))))
 
 
     
@@ -119,8 +127,9 @@
     (let [td (first (:primary @to-draw))] 
       (swap! to-draw assoc-in [:primary] (rest (:primary @to-draw)))
       (tri/draw-triangle-map-average td)
-      (export-JPG @counter)
-      (dosync (ref-set img (load-image (str "saved-images/sketch-" @counter ".jpg"))))
+      ;; the next frame starts from the copy being exported, not from
+      ;; the file, which may not be written yet
+      (dosync (ref-set img (export-JPG @counter)))
       (swap! counter inc))))
 
 (defn draw-starting-image
@@ -128,7 +137,6 @@
   []
   (image @img 0 0 window-width window-height)
   (export-JPG @counter)
-  (println "Done with image" @counter)
   (swap! counter inc))
 
 (defn draw-temporary
@@ -0,0 +1,97 @@
+(ns sketch.export
+  (:require [clojure.core.async :as async]
+            [clojure.java.io :as io])
+  (:import [java.awt.image BufferedImage]
+           [javax.imageio IIOImage ImageIO ImageWriteParam ImageWriter]
+           [processing.core PImage]))
+
+;; ------------ Export Queue -----------------
+;; Saves images off the animation thread. The draw thread takes a copy of
+;; the canvas and hands it to the queue with the work of encoding and
+;; writing it, and one worker thread does that work in the order it was
+;; queued, so draw never waits on an encoder or the disk.
+;;
+;; The queue holds a few exports at most. Each waiting export keeps a
+;; whole copy of the canvas, so once it is full the draw thread waits for
+;; room instead of piling copies up faster than they can be written.
+;;
+;; Exports still waiting when the JVM exits are written before it does.
+
+(def capacity 4)
+
+(defonce progress (atom {:queued 0 :written 0 :failed 0}))
+
+(defn- runExport
+  [{:keys [label write]}]
+  (try
+    (write)
+    (swap! progress update :written inc)
+    (let [{:keys [queued written failed]} @progress]
+      (println "Done with" label (str "(" (- queued written failed) " waiting)")))
+    (catch Exception e
+      (swap! progress update :failed inc)
+      (println "Could not export" label (.getMessage e)))))
+
+(declare flushExports)
+
+(defn- startWorker
+  []
+  (let [exports (async/chan capacity)]
+    (async/thread
+      (loop []
+        (when-let [export (async/<!! exports)]
+          (if-let [done (:done export)]
+            (deliver done true)
+            (runExport export))
+          (recur))))
+    (.addShutdownHook (Runtime/getRuntime) (Thread. ^Runnable #(flushExports 60000)))
+    exports))
+
+(defonce ^:private exports (delay (startWorker)))
+
+(defn enqueue
+  "queues write, a function doing the encoding and writing of one export,
+   waiting for room when the queue is full. label names the export in
+   progress messages"
+  [label write]
+  (swap! progress update :queued inc)
+  (async/>!! @exports {:label label :write write}))
+
+(defn flushExports
+  "waits until every export queued so far is written, at most timeout
+   milliseconds. true when they all were"
+  ([]
+   (flushExports Long/MAX_VALUE))
+  ([timeout]
+   (let [done (promise)
+         deadline (async/timeout (min (long timeout) Integer/MAX_VALUE))]
+     (and (async/alt!! [[@exports {:done done}]] true deadline false)
+          (deref done timeout false)))))
+
+;; ------------ Writers -----------------
+
+(defn- rgbImage
+  "a BufferedImage holding a copy of the image's pixels"
+  ^BufferedImage [^PImage image]
+  (.loadPixels image)
+  (doto (BufferedImage. (.-pixelWidth image) (.-pixelHeight image) BufferedImage/TYPE_INT_RGB)
+    (.setRGB 0 0 (.-pixelWidth image) (.-pixelHeight image) (.-pixels image) 0 (.-pixelWidth image))))
+
+(defn writeJPG
+  "writes an image as a jpg at the given quality, 1.0 by default like
+   processing's save"
+  ([path image]
+   (writeJPG path image 1.0))
+  ([path ^PImage image quality]
+   (io/make-parents path)
+   ;; the stream writes over an old file without shortening it
+   (io/delete-file path true)
+   (let [^ImageWriter writer (.next (ImageIO/getImageWritersByFormatName "jpeg"))
+         param (doto (.getDefaultWriteParam writer)
+                 (.setCompressionMode ImageWriteParam/MODE_EXPLICIT)
+                 (.setCompressionQuality (float quality)))]
+     (with-open [out (ImageIO/createImageOutputStream (io/file path))]
+       (.setOutput writer out)
+       (.write writer nil (IIOImage. (rgbImage image) nil nil) param)
+       (.dispose writer))
+     path)))
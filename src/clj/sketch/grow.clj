@@ -2,7 +2,13 @@
   (:require [quil.core :refer :all]
             [clojure.java.shell :refer [sh]]
             [sketch.calculations :as calc]
-            [sketch.path :as path])
+            [sketch.path :as path]
+            [sketch.spatial :as spatial]
+            [sketch.metrics :as metrics]
+            [sketch.distance_field :as field]
+            [sketch.archive :as archive]
+            [sketch.rng :as rng]
+            [clojure.core.reducers :as r])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
@@ -41,18 +47,47 @@
    :node-injection-interval 10
    :brownian-motion-range 0.25))
 
+(defn randomInRange
+  "returns a random double between min and max, drawn from the given
+   random stream, see rng/uniformWith"
+  [rng min max]
+  (rng/uniformWith rng min max))
+
+(defn randomInt
+  "returns a random int below n, drawn from the given random stream,
+   see rng/uniformIntWith"
+  [rng n]
+  (rng/uniformIntWith rng n))
+
+(defn nodeRandom
+  "returns a random stream that only depends on the seed, the iteration
+   and the given node's id, so results do not change with the order
+   or the thread that nodes are processed on"
+  [seed iteration node]
+  (rng/stream seed iteration (:ID node)))
+
+(defn pathRandom
+  "returns the stream a path draws from during one growth step of a seeded
+   run, or nil when the run is unseeded"
+  [path path-index]
+  (rng/streamFor :growth (or (:age path) 0) path-index))
+
 (defn applyBrownianMotion
   "simulates minor motion"
-  [node]
-  (if (not (:is-fixed (:data node)))
-   (let [x (get (:position node) 0)
-         y (get (:position node) 1)
-         new-x (+ x (random (- 0 (/ (:brownian-motion-range (:settings node)) 2))
-                            (/ (:brownian-motion-range (:settings node)) 2)))
-         new-y (+ y (random (- 0 (/ ((:settings node) :brownian-motion-range) 2))
-                            (/ (:brownian-motion-range (:settings node)) 2)))]
-     (assoc node :position [new-x new-y]))
-    node))
+  ([node]
+   (applyBrownianMotion node nil))
+  ([node rng]
+   (if (not (:is-fixed (:data node)))
+     (let [x (:x (:position node))
+           y (:y (:position node))
+           new-x (+ x (randomInRange rng
+                                     (- 0 (/ (:brownian-motion-range (:settings node)) 2))
+                                     (/ (:brownian-motion-range (:settings node)) 2)))
+           new-y (+ y (randomInRange rng
+                                     (- 0 (/ ((:settings node) :brownian-motion-range) 2))
+                                     (/ (:brownian-motion-range (:settings node)) 2)))]
+       (assoc node :position (path/getPosition {:x new-x :y new-y})))
+     node)))
 
 ;; needs work -- not finished
 (defn removeOutOfBoundsNodes
@@ -75,17 +110,32 @@
      (update-in node [:settings] assoc :hardend? true)) 
    nodes))
 
+(defn nextPosition
+  "retrieves the node's next position, which starts out at its current
+   position for nodes that have not been moved yet"
+  [node]
+  (or (:next-position (:data node))
+      (:position node)))
+
+(defn minDistance
+  "retrieves the node's min distance, falling back to its settings for
+   nodes built with the default node data"
+  [node]
+  (or (:min-distance (:data node))
+      (:min-distance (:settings node))
+      (:min-distance default-node-growth-data)))
+
 (defn attract
   [node connected-node]
   (let [distance (path/getDistance node connected-node)
         least-min-distance (Math/min
-                            (:min-distance (:data node))
-                            (:min-distance (:data connected-node)))]
+                            (double (minDistance node))
+                            (double (minDistance connected-node)))]
     (if (> distance least-min-distance)
-      (let [connected-x (get (:position connected-node) 0)
-            connected-y (get (:position connected-node) 1)
-            next-x (:x (:next-position (:data node)))
-            next-y (:y (:next-position (:data node)))
+      (let [connected-x (:x (:position connected-node))
+            connected-y (:y (:position connected-node))
+            next-x (:x (nextPosition node))
+            next-y (:y (nextPosition node))
             x (lerp next-x
                     connected-x
                     (:attraction-force (:settings node)))
@@ -97,23 +147,25 @@
 
 (defn applyAttraction
   "moves all given nodes closer to their connected nodes"
-  [path node-index]
-  (if (not (:is-fixed (:data (get (:nodes path) node-index))))
-    (let [new-node (get (:nodes path) node-index)
-
-          connected-nodes (path/getConnectedNodes (:nodes path) node-index (:is-closed path))
-          next-node (:next connected-nodes)
-          previous-node (:prev connected-nodes)
-          new-node (if (and (not= next-node nil)
-                            (not (:is-fixed (:data new-node))))
-                     (attract new-node next-node)
-                     new-node)
-          new-node (if (and (not= previous-node nil)
-                            (not (:is-fixed (:data new-node))))
-                     (attract new-node previous-node)
-                     new-node)]
-      new-node)
-    (get (:nodes path) node-index)))
+  ([path node-index]
+   (applyAttraction path node-index (get (:nodes path) node-index)))
+  ([path node-index node]
+   (if (not (:is-fixed (:data node)))
+     (let [new-node node
+
+           connected-nodes (path/getConnectedNodes (:nodes path) node-index (:is-closed path))
+           next-node (:next connected-nodes)
+           previous-node (:prev connected-nodes)
+           new-node (if (and (not= next-node nil)
+                             (not (:is-fixed (:data new-node))))
+                      (attract new-node next-node)
+                      new-node)
+           new-node (if (and (not= previous-node nil)
+                             (not (:is-fixed (:data new-node))))
+                      (attract new-node previous-node)
+                      new-node)]
+       new-node)
+     node)))
 
 
 (declare applyRepulsion)
@@ -130,7 +182,7 @@
   (take radius
         (sort-by :distance
                  (map
-                  #(assoc % :distance (calc/euclidean-distance (:position node) (:position %)))
+                  #(assoc % :distance (path/getDistance node %))
                   nodes))))
 
 (defn knn
@@ -143,15 +195,15 @@
   [paths node radius]
   (map
    (fn [path]
-     (let [negX (- (nth (:position node) 0) radius)
-           negY (- (nth (:position node) 1) radius)
-           posX (+ (nth (:position node) 0) radius)
-           posY (+ (nth (:position node) 1) radius)]
+     (let [negX (- (:x (:position node)) radius)
+           negY (- (:y (:position node)) radius)
+           posX (+ (:x (:position node)) radius)
+           posY (+ (:y (:position node)) radius)]
        (filter
-        #(and (>= (nth (:position %) 0) negX)
-              (>= (nth (:position %) 1) negY)
-              (<= (nth (:position %) 0) posX)
-              (<= (nth (:position %) 1) posY))
+        #(and (>= (:x (:position %)) negX)
+              (>= (:y (:position %)) negY)
+              (<= (:x (:position %)) posX)
+              (<= (:y (:position %)) posY))
         (:nodes path))))
    paths))
 
@@ -165,51 +217,80 @@
       nodes))))
 
 (defn applyRepulsion
-  "moves the indexed node away from any node within its radius"
-  [paths path-index node-index]
-  (let [path (get paths path-index)
-        node (atom (get (:nodes path) node-index))
-        settings (if (:uniform-node-settings? (:settings path))
-                   (:settings path)
-                   (:settings @node))]
-    (doseq [neighbor (radiusNN paths @node)]
-      (let [x (lerp (:x (:position @node))
-                    (:x (:position neighbor))
-                    (- 0 (:repulsion-force settings)))
-            y (lerp (:y (:position @node))
-                    (:y (:position neighbor))
-                    (- 0 (:repulsion-force settings)))]
-        (swap! node update-in [:data :next-position] assoc :x x :y y)))
-    @node))
+  "moves the indexed node away from any node within its radius.
+   when given a spatial hash the neighbors are looked up in the
+   surrounding cells instead of scanning every path"
+  ([paths path-index node-index]
+   (applyRepulsion paths path-index node-index nil))
+  ([paths path-index node-index spatial-hash]
+   (applyRepulsion paths path-index node-index spatial-hash (get (:nodes (get paths path-index)) node-index)))
+  ([paths path-index node-index spatial-hash node]
+   (let [path (get paths path-index)
+         node (atom node)
+         settings (if (:uniform-node-settings? (:settings path))
+                    (:settings path)
+                    (:settings @node))
+         neighbors (if spatial-hash
+                     (spatial/radiusNN spatial-hash @node (:repulsion-radius (:settings @node)))
+                     (radiusNN paths @node))]
+     (metrics/addCount :neighbor-queries 1)
+     (metrics/addCount :neighbors-found (count neighbors))
+     (doseq [neighbor neighbors]
+       (let [x (lerp (:x (:position @node))
+                     (:x (:position neighbor))
+                     (- 0 (:repulsion-force settings)))
+             y (lerp (:y (:position @node))
+                     (:y (:position neighbor))
+                     (- 0 (:repulsion-force settings)))]
+         (swap! node update-in [:data :next-position] assoc :x x :y y)))
+     @node)))
+
+(defn applyArchiveRepulsion
+  "moves a node away from the closest frozen segment within its radius"
+  [path node frozen]
+  (if-let [[x y] (when frozen
+                   (archive/nearestPoint frozen (:x (:position node)) (:y (:position node))
+                                         (:repulsion-radius (:settings node))))]
+    (let [settings (if (:uniform-node-settings? (:settings path))
+                     (:settings path)
+                     (:settings node))]
+      (metrics/addCount :archive-hits 1)
+      (update-in node [:data :next-position] assoc
+                 :x (lerp (:x (:position node)) x (- 0 (:repulsion-force settings)))
+                 :y (lerp (:y (:position node)) y (- 0 (:repulsion-force settings)))))
+    node))
 
 (defn applyAlignment
-  [path node-index]
-  (let [node (get (:nodes path) node-index)
-        connected-nodes (path/getConnectedNodes (:nodes path) node-index (:is-closed path))
-        next-node (:next connected-nodes)
-        previous-node (:prev connected-nodes)]
-    (if (and (not= next-node nil)
-             (not= previous-node nil)
-             (not (:is-fixed (:data node))))
-      (let [settings (if (:uniform-node-settings? (:settings path))
-                       (:settings path)
-                       (:settings node))
-            midpoint (path/getMidpointNode previous-node next-node settings false false)
-            next-x (:x (:next-position (:data node)))
-            next-y (:y (:next-position (:data node)))
-            x (lerp next-x
-                    (get (:position midpoint) 0)
-                    (:alignment path))
-            y (lerp next-y
-                    (get (:position midpoint) 1)
-                    (:alignment path))
-            node (update-in node [:data :next-position] assoc :x x :y y)]
-        node)
-      node)))
+  ([path node-index]
+   (applyAlignment path node-index (get (:nodes path) node-index)))
+  ([path node-index node]
+   (let [connected-nodes (path/getConnectedNodes (:nodes path) node-index (:is-closed path))
+         next-node (:next connected-nodes)
+         previous-node (:prev connected-nodes)]
+     (if (and (not= next-node nil)
+              (not= previous-node nil)
+              (not (:is-fixed (:data node))))
+       (let [settings (if (:uniform-node-settings? (:settings path))
+                        (:settings path)
+                        (:settings node))
+             midpoint-x (/ (+ (:x (:position previous-node)) (:x (:position next-node))) 2)
+             midpoint-y (/ (+ (:y (:position previous-node)) (:y (:position next-node))) 2)
+             next-x (:x (nextPosition node))
+             next-y (:y (nextPosition node))
+             alignment (or (:alignment path) (:allignment-force settings) 0)
+             x (lerp next-x
+                     midpoint-x
+                     alignment)
+             y (lerp next-y
+                     midpoint-y
+                     alignment)
+             node (update-in node [:data :next-position] assoc :x x :y y)]
+         node)
+       node))))
 
 (defn inBounds
   [[x y] node]
-  (if (and (= x (get (:position node) 0)) (= y (get (:position node) 1)))
+  (if (and (= x (:x (:position node))) (= y (:y (:position node))))
     true
     false))
 
@@ -223,8 +304,8 @@
 
 (defn applyBounds-2
   [node w h]
-  (let [x (get (:position node) 0)
-        y (get (:position node) 1)]
+  (let [x (:x (:position node))
+        y (:y (:position node))]
     (if (or
          (< x 10)
          (< y 10)
@@ -233,6 +314,27 @@
       (assoc-in node [:data :is-fixed] true)
       node)))
 
+(defn applyFieldBounds
+  "fixes a node once it reaches the edge of a distance field region, pushing
+   it back to margin inside the region if it has crossed over"
+  [node bounds margin]
+  (let [x (:x (:position node))
+        y (:y (:position node))]
+    (cond
+      (field/inside? bounds x y margin) node
+      (:is-fixed (:data node)) node
+      :else (let [[x y] (field/pushInside bounds x y margin)]
+              (-> node
+                  (assoc :position (path/getPosition {:x x :y y}))
+                  (assoc-in [:data :is-fixed] true))))))
+
+(defn applyNodeBounds
+  "applyFieldBounds when a distance field is given, otherwise applyBounds-2"
+  [node width height bounds margin]
+  (if bounds
+    (applyFieldBounds node bounds margin)
+    (applyBounds-2 node width height)))
+
 (def counter (atom {:i 0}))
 
 (defn applyHardening
@@ -248,7 +350,7 @@
     (if (or (:is-mature path) (< age start-hardening-num))
       path
       (if (>= age set-fixed-num)
-        (assoc-in path [:nodes (rand-int (count (:nodes path))) :data :is-fixed] true)
+        (assoc-in path [:nodes (rng/uniformInt (count (:nodes path))) :data :is-fixed] true)
         (assoc-in path [:nodes]
                   (reduce
                    (fn [new-nodes node-index]
@@ -298,26 +400,38 @@
 (defn pruneNodes
   "removes nodes that are too close"
   [path]
-  (let [new-path (atom path)]
-    (doseq [node-index (range (count (:nodes @new-path)))]
-      (let [node (get (:nodes @new-path) node-index)
-            length (count @new-path)
-            connected-nodes (path/getConnectedNodes (:nodes @new-path) node-index (:is-closed @new-path))
-            prev-node (:prev connected-nodes)
-            distance (path/getDistance node prev-node)
-            data (if (:uniform-node-settings? (:settings @new-path))
-                       (:data @new-path)
-                       (:data node))]
-        (when (and (not= prev-node nil)
-                   (not (:is-end (:data prev-node)))
-                   (not (:is-fixed (:data prev-node)))
-                   (not (:to-remove (:data prev-node)))
-                   (< distance (:min-distance data)))
-          (if (and (:is-closed (:data @new-path))
-                   (= node-index 0))
-            (swap! new-path assoc-in [:nodes (- length 1) :data :to-remove] true)
-            (swap! new-path assoc-in [:nodes (- node-index 1) :data :to-remove] true)))))
-    (assoc-in @new-path [:nodes] (into [] (remove #(:to-remove (:data %)) (:nodes @new-path))))))
+  (let [nodes (:nodes path)
+        length (count nodes)
+        is-closed (:is-closed path)
+        to-remove (reduce
+                   (fn [to-remove node-index]
+                     (let [node (get nodes node-index)
+                           prev-index (cond
+                                        (= length 2) 0
+                                        (= node-index 0) (when is-closed (- length 1))
+                                        :else (- node-index 1))
+                           prev-node (when prev-index (get nodes prev-index))
+                           distance (path/getDistance node prev-node)
+                           data (if (:uniform-node-settings? (:settings path))
+                                  (:data path)
+                                  (:data node))]
+                       (if (and (not= prev-node nil)
+                                (not= prev-index node-index)
+                                (not (:is-end (:data prev-node)))
+                                (not (:is-fixed (:data prev-node)))
+                                (not (contains? to-remove prev-index))
+                                (< distance (or (:min-distance data) (minDistance node))))
+                         (conj to-remove prev-index)
+                         to-remove)))
+                   (into #{} (filter #(:to-remove (:data (get nodes %)))) (range length))
+                   (range length))]
+    (if (empty? to-remove)
+      path
+      (assoc-in path [:nodes]
+                (into [] (keep-indexed (fn [node-index node]
+                                         (when-not (contains? to-remove node-index)
+                                           node)))
+                      nodes)))))
 
 (defn makeCanvasBounds
   "builds bounds on the perimeter of the canvas"
@@ -414,9 +528,8 @@
 (defn injectRandomNode
   [path]
   (let [nodes (:nodes path)
-        node-index (rand-int (count nodes))
+        node-index (rng/uniformInt (count nodes))
         node (get nodes node-index)
-        length (- (count nodes) 1)
         connected-nodes (path/getConnectedNodes nodes node-index (:is-closed (:data path)))
         next-node (:next connected-nodes)
         previous-node (:prev connected-nodes)
@@ -432,8 +545,8 @@
              (> distance min-distance))
       (let [midpoint-node (path/getMidpointNode node previous-node settings true false)]
         (if (= node-index 0)
-          (assoc-in path [:nodes] (conj nodes length midpoint-node))
-          (assoc-in path [:nodes] (path/insert (:nodes path) node-index midpoint-node))))
+          (assoc-in path [:nodes] (conj nodes midpoint-node))
+          (assoc-in path [:nodes] (path/insert nodes node-index midpoint-node))))
       path)))
 
 (defn addFirstVec
@@ -442,42 +555,42 @@
   (apply conj (if (vector? addition) addition [addition]) target))
 
 (defn injectRandomNodeByCurvature
-  [path]
-  (let [nodes (:nodes path)]
-    (assoc-in path [:nodes]
-              (reduce
-               (fn [new-nodes node-index]
-                 (let [node (get nodes node-index)
-                       connected-nodes (path/getConnectedNodes nodes node-index (:is-closed (:data path)))
-                       next-node (:next connected-nodes)
-                       prev-node (:prev connected-nodes)]
-                   (if (or (= next-node nil)
-                           (= prev-node nil)
-                           (:is-fixed (:data node)))
-                     (conj new-nodes node)
-                     (let [n (- (:y (:position next-node)) (:y (:position prev-node)))
-                           d (- (:x (:position next-node)) (:x (:position prev-node)))
-                           d (if (= d 0)
-                               0.01
-                               d)
-                           a (/ n d)
-                           tan (Math/atan a)
-                           rad (Math/abs tan)
-                           deg (degrees rad)
-                           angle (Math/round deg)]
-                       (if (and (>= angle 20) (< (rand-int 100) 50))
-                         (conj new-nodes node)
-                         (let [settings (if (:uniform-node-settings? (:settings path))
-                                          (:settings path)
-                                          (:settings node))
-                               next-midpoint-node (path/getMidpointNode node next-node settings true false)
-                               prev-midpoint-node (path/getMidpointNode node prev-node settings true false)]
-
-                           (if (= node-index 0)
-                             (conj (addFirstVec new-nodes prev-midpoint-node) next-midpoint-node)
-                             (conj new-nodes prev-midpoint-node next-midpoint-node))))))))
-               []
-               (range (count nodes))))))
+  "replaces nodes on shallow curves with the midpoints to their neighbors"
+  ([path]
+   (injectRandomNodeByCurvature path nil))
+  ([path rng]
+   (let [nodes (:nodes path)]
+     (assoc-in path [:nodes]
+               (reduce
+                (fn [new-nodes node-index]
+                  (let [node (get nodes node-index)
+                        connected-nodes (path/getConnectedNodes nodes node-index (:is-closed (:data path)))
+                        next-node (:next connected-nodes)
+                        prev-node (:prev connected-nodes)]
+                    (if (or (= next-node nil)
+                            (= prev-node nil)
+                            (:is-fixed (:data node)))
+                      (conj new-nodes node)
+                      (let [n (- (:y (:position next-node)) (:y (:position prev-node)))
+                            d (- (:x (:position next-node)) (:x (:position prev-node)))
+                            d (if (zero? d)
+                                0.01
+                                d)
+                            a (/ n d)
+                            tan (Math/atan a)
+                            rad (Math/abs tan)
+                            deg (degrees rad)
+                            angle (Math/round (double deg))]
+                        (if (and (>= angle 20) (< (randomInt rng 100) 50))
+                          (conj new-nodes node)
+                          (let [settings (if (:uniform-node-settings? (:settings path))
+                                           (:settings path)
+                                           (:settings node))
+                                next-midpoint-node (path/getMidpointNode node next-node settings true false)
+                                prev-midpoint-node (path/getMidpointNode node prev-node settings true false)]
+                            (conj new-nodes prev-midpoint-node next-midpoint-node)))))))
+                []
+                (range (count nodes)))))))
 
 (defn testAngle
   [n d]
@@ -486,7 +599,7 @@
         tan (Math/atan a)
         rad (Math/abs tan)
         deg (degrees rad)
-        angle (Math/round deg)]
+        angle (Math/round (double deg))]
     angle))
 
 (defn incGrowthCount
@@ -503,56 +616,79 @@
   "moves the node to new spot"
   [node]
   (if (not (:is-fixed (:data node)))
-    (let [x (get (:position node) 0)
-          y (get (:position node) 1)
-          next-x (:x (:next-position (:data node)))
-          next-y (:y (:next-position (:data node)))
+    (let [x (:x (:position node))
+          y (:y (:position node))
+          next-x (:x (nextPosition node))
+          next-y (:y (nextPosition node))
           max-velocity (:max-velocity (:settings node))
-          new-x (Math/round (lerp x next-x max-velocity))
-          new-y (Math/round (lerp y next-y max-velocity))
+          new-x (Math/round (double (lerp x next-x max-velocity)))
+          new-y (Math/round (double (lerp y next-y max-velocity)))
           new-node (path/incNodeAge node)
-          new-node (assoc-in new-node [:position] [new-x new-y])]
+          new-node (assoc-in new-node [:position] (path/getPosition {:x new-x :y new-y}))]
       new-node)
     node))
 
 (def div-complete (atom {:div false}))
 
+(defn buildRepulsionHash
+  "buckets all nodes into a spatial hash sized to the largest repulsion radius"
+  [paths]
+  (spatial/buildSpatialHash paths (spatial/hashCellSize paths (:repulsion-radius default-node-growth-data))))
+
 (defn applyGrowth
-  [paths width height]
-  (let [new-paths (atom paths)]
-    (doseq [path-index (range (count @new-paths))] 
-      (doseq [node-index (range (count (:nodes (get @new-paths path-index))))]
+  "optionally bounded by a distance field, see applyNodeBounds. given an
+   :archive atom, fixed nodes are frozen into it instead of being dropped
+   and still repel growth, see sketch.archive"
+  ([paths width height]
+   (applyGrowth paths width height {}))
+  ([paths width height {:keys [bounds bounds-margin archive] :or {bounds-margin 2}}]
+   (metrics/profileFrame
+    :grow
+    (let [new-paths (atom paths)
+          frozen (when archive @archive)
+          spatial-hash (metrics/measure :spatial-hash (buildRepulsionHash paths))]
+      (doseq [path-index (range (count @new-paths))
+              :let [path-rng (pathRandom (get @new-paths path-index) path-index)]]
+        (doseq [node-index (range (count (:nodes (get @new-paths path-index))))]
         
-        (swap! new-paths assoc-in [path-index :nodes node-index] (applyBrownianMotion (get (:nodes (get @new-paths path-index)) node-index)))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :brownian-motion (applyBrownianMotion (get (:nodes (get @new-paths path-index)) node-index) path-rng)))
+
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :attraction (applyAttraction (get @new-paths path-index) node-index)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (applyAttraction (get @new-paths path-index) node-index))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :repulsion (applyArchiveRepulsion (get @new-paths path-index) (applyRepulsion @new-paths path-index node-index spatial-hash) frozen)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (applyRepulsion @new-paths path-index node-index))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :alignment (applyAlignment (get @new-paths path-index) node-index)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (applyAlignment (get @new-paths path-index) node-index))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :bounds (applyNodeBounds (get (:nodes (get @new-paths path-index)) node-index) width height bounds bounds-margin)))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (applyBounds-2 (get (:nodes (get @new-paths path-index)) node-index) width height))
+          (swap! new-paths assoc-in [path-index :nodes node-index] (metrics/measure :grow (grow (get (:nodes (get @new-paths path-index)) node-index)))))
 
-        (swap! new-paths assoc-in [path-index :nodes node-index] (grow (get (:nodes (get @new-paths path-index)) node-index))))
+         (metrics/addCount :nodes-before-split (count (:nodes (get @new-paths path-index))))
 
-       (swap! new-paths assoc-in [path-index] (splitEdges (get @new-paths path-index)))
+         (swap! new-paths assoc-in [path-index] (metrics/measure :split-edges (splitEdges (get @new-paths path-index))))
 
-       (swap! new-paths assoc-in [path-index] (pruneNodes (get @new-paths path-index)))
+         (metrics/addCount :nodes-after-split (count (:nodes (get @new-paths path-index))))
 
-       (swap! new-paths assoc-in [path-index :nodes] (path/removeFixed (:nodes (get @new-paths path-index))))
+         (swap! new-paths assoc-in [path-index] (metrics/measure :prune-nodes (pruneNodes (get @new-paths path-index))))
 
-       (when (> (rand-int 100) 50)
-         (swap! new-paths assoc-in [path-index] (injectRandomNodeByCurvature (get @new-paths path-index))))
+         (metrics/addCount :nodes-after-prune (count (:nodes (get @new-paths path-index))))
 
-       (swap! new-paths update-in [path-index :age] inc)
-      ;;  (when (and not :div @div-complete (= (:age (get @new-paths path-index)) 100))
-      ;;    (swap! new-paths assoc-in [path-index :nodes] (dividePathsOnHorizontalLine (get @new-paths path-index) (random width)))
-      ;;    (reset! new-paths (buildSubPaths @new-paths))
-      ;;    (swap! div-complete assoc-in [:div] true))
+         (swap! new-paths assoc-in [path-index] (metrics/measure :remove-fixed (if archive
+                                                                                 (archive/freeze! archive (get @new-paths path-index))
+                                                                                 (assoc-in (get @new-paths path-index) [:nodes] (path/removeFixed (:nodes (get @new-paths path-index)))))))
+
+         (when (> (randomInt path-rng 100) 50)
+           (swap! new-paths assoc-in [path-index] (metrics/measure :inject-by-curvature (injectRandomNodeByCurvature (get @new-paths path-index) path-rng))))
+
+         (swap! new-paths update-in [path-index :age] (fnil inc 0))
+        ;;  (when (and not :div @div-complete (= (:age (get @new-paths path-index)) 100))
+        ;;    (swap! new-paths assoc-in [path-index :nodes] (dividePathsOnHorizontalLine (get @new-paths path-index) (random width)))
+        ;;    (reset! new-paths (buildSubPaths @new-paths))
+        ;;    (swap! div-complete assoc-in [:div] true))
        
-         )
+           )
 
-    @new-paths))
+      @new-paths))))
 
 ;; (defn init-growth ;;call it seed?
 ;;   "initializes growth"
@@ -564,3 +700,177 @@
 ;;         paths (applyGrowth p-4 w h)]
 ;;     paths))
 
+;; ------------ Fused Growth -----------------
+
+(defn applyTopology
+  "splits, prunes and injects nodes along a path after its nodes have moved.
+   fixed nodes go to the archive atom when one is given"
+  [path remove-fixed? archive rng]
+  (let [path (pruneNodes (splitEdges path))
+        path (cond
+               archive (archive/freeze! archive path)
+               remove-fixed? (assoc-in path [:nodes] (path/removeFixed (:nodes path)))
+               :else path)
+        path (if (> (randomInt rng 100) 50)
+               (injectRandomNodeByCurvature path rng)
+               path)]
+    (update-in path [:age] (fnil inc 0))))
+
+(defn growthContext
+  "resolves the path level settings used by every node of a path once"
+  ([path]
+   (growthContext path {}))
+  ([path {:keys [bounds bounds-margin frozen] :or {bounds-margin 2}}]
+   {:uniform? (:uniform-node-settings? (:settings path))
+    :settings (:settings path)
+    :alignment (:alignment path)
+    :is-closed (:is-closed path)
+    :bounds bounds
+    :bounds-margin bounds-margin
+    :frozen frozen}))
+
+(defn fusedNodeStep
+  "single traversal equivalent of applyBrownianMotion, applyAttraction,
+   applyRepulsion, applyAlignment, applyBounds-2 and grow. positions are
+   carried in locals between the stages and the node is rebuilt once"
+  [path context node-index spatial-hash width height rng]
+  (let [nodes (:nodes path)
+        node (get nodes node-index)
+        data (:data node)
+        node-settings (:settings node)
+        settings (if (:uniform? context) (:settings context) node-settings)
+        fixed? (:is-fixed data)
+        position (:position node)
+        half-range (when-not fixed? (/ (:brownian-motion-range node-settings) 2))
+        x (if fixed? (:x position) (+ (:x position) (randomInRange rng (- 0 half-range) half-range)))
+        y (if fixed? (:y position) (+ (:y position) (randomInRange rng (- 0 half-range) half-range)))
+        moved (if fixed? node (assoc node :position (path/getPosition {:x x :y y})))
+        connected-nodes (path/getConnectedNodes nodes node-index (:is-closed context))
+        next-node (:next connected-nodes)
+        prev-node (:prev connected-nodes)
+        next-position (nextPosition moved)
+        attraction-force (:attraction-force node-settings)
+        attract-to (fn [[nx ny touched?] other]
+                     (if (and (not= other nil)
+                              (> (path/getDistance moved other)
+                                 (Math/min (double (minDistance node)) (double (minDistance other)))))
+                       [(lerp nx (:x (:position other)) attraction-force)
+                        (lerp ny (:y (:position other)) attraction-force)
+                        true]
+                       [nx ny touched?]))
+        [nx ny touched?] (if fixed?
+                           [(:x next-position) (:y next-position) false]
+                           (-> [(:x next-position) (:y next-position) false]
+                               (attract-to next-node)
+                               (attract-to prev-node)))
+        neighbor (spatial/furthestOfNearest spatial-hash moved (:repulsion-radius node-settings))
+        [nx ny touched?] (if neighbor
+                           [(lerp x (:x (:position neighbor)) (- 0 (:repulsion-force settings)))
+                            (lerp y (:y (:position neighbor)) (- 0 (:repulsion-force settings)))
+                            true]
+                           [nx ny touched?])
+        frozen-point (when-let [frozen (:frozen context)]
+                       (archive/nearestPoint frozen x y (:repulsion-radius node-settings)))
+        [nx ny touched?] (if frozen-point
+                           [(lerp x (first frozen-point) (- 0 (:repulsion-force settings)))
+                            (lerp y (second frozen-point) (- 0 (:repulsion-force settings)))
+                            true]
+                           [nx ny touched?])
+        [nx ny touched?] (if (and (not= next-node nil) (not= prev-node nil) (not fixed?))
+                           (let [alignment (or (:alignment context) (:allignment-force settings) 0)]
+                             [(lerp nx (/ (+ (:x (:position prev-node)) (:x (:position next-node))) 2) alignment)
+                              (lerp ny (/ (+ (:y (:position prev-node)) (:y (:position next-node))) 2) alignment)
+                              true])
+                           [nx ny touched?])
+        bounds (:bounds context)
+        out-of-bounds? (if bounds
+                         (not (field/inside? bounds x y (:bounds-margin context)))
+                         (or (< x 10) (< y 10) (> x (- width 10)) (> y (- height 10))))
+        moved (if (and bounds out-of-bounds? (not fixed?))
+                (let [[x y] (field/pushInside bounds x y (:bounds-margin context))]
+                  (assoc moved :position (path/getPosition {:x x :y y})))
+                moved)
+        data (if touched? (update-in data [:next-position] assoc :x nx :y ny) data)
+        data (if out-of-bounds? (assoc data :is-fixed true) data)]
+    (if (or fixed? out-of-bounds?)
+      (assoc moved :data data)
+      (let [max-velocity (:max-velocity node-settings)]
+        (assoc moved
+               :position (path/getPosition {:x (Math/round (double (lerp x nx max-velocity)))
+                                            :y (Math/round (double (lerp y ny max-velocity)))})
+               :data (update-in data [:age] inc))))))
+
+(defn applyGrowthFused
+  "applyGrowth with every force applied to a node in one traversal and
+   each node written back once. produces the same paths as applyGrowth
+   given the same random sequence"
+  ([paths width height]
+   (applyGrowthFused paths width height {}))
+  ([paths width height {:keys [remove-fixed? archive] :or {remove-fixed? true} :as opts}]
+   (let [spatial-hash (buildRepulsionHash paths)
+         opts (assoc opts :frozen (when archive @archive))]
+     (mapv
+      (fn [path-index path]
+        (let [context (growthContext path opts)
+              path-rng (pathRandom path path-index)
+              nodes (reduce
+                     (fn [nodes node-index]
+                       (assoc nodes node-index
+                              (fusedNodeStep (assoc path :nodes nodes) context node-index
+                                             spatial-hash width height path-rng)))
+                     (:nodes path)
+                     (range (count (:nodes path))))]
+          (applyTopology (assoc path :nodes nodes) remove-fixed? archive path-rng)))
+      (range (count paths))
+      paths))))
+
+;; ------------ Parallel Growth -----------------
+
+(defn- commitNodes
+  "swaps the freshly computed nodes into a copy of the snapshot"
+  [snapshot new-nodes]
+  (first
+   (reduce
+    (fn [[paths offset] path-index]
+      (let [n (count (:nodes (get snapshot path-index)))]
+        [(assoc-in paths [path-index :nodes] (subvec new-nodes offset (+ offset n)))
+         (+ offset n)]))
+    [snapshot 0]
+    (range (count snapshot)))))
+
+(defn applyGrowthParallel
+  "parallel version of applyGrowth. brownian motion, attraction, repulsion
+   and alignment are computed for every node against a read-only snapshot
+   of the paths, split into fork/join chunks. the results are written to a
+   second buffer that replaces the snapshot once every chunk is done, then
+   splitting, pruning and injection run on each path in order.
+
+   every node draws from its own stream derived from :seed (the master seed
+   of rng/withSeed when not given), :iteration and its id so the outcome
+   does not depend on the number of threads"
+  ([paths width height]
+   (applyGrowthParallel paths width height {}))
+  ([paths width height {:keys [seed iteration chunk-size remove-fixed? archive]
+                        :or {iteration 0 chunk-size 512 remove-fixed? true}
+                        :as opts}]
+   (let [seed (or seed rng/*seed* 0)
+         snapshot (vec paths)
+         spatial-hash (buildRepulsionHash snapshot)
+         opts (assoc opts :frozen (when archive @archive))
+         contexts (mapv #(growthContext % opts) snapshot)
+         tasks (vec (for [path-index (range (count snapshot))
+                          node-index (range (count (:nodes (get snapshot path-index))))]
+                      [path-index node-index]))
+         new-nodes (r/fold
+                    chunk-size
+                    (fn ([] []) ([a b] (into a b)))
+                    (fn [acc [path-index node-index]]
+                      (let [node (get (:nodes (get snapshot path-index)) node-index)]
+                        (conj acc (fusedNodeStep (get snapshot path-index)
+                                                 (get contexts path-index)
+                                                 node-index spatial-hash width height
+                                                 (nodeRandom seed iteration node)))))
+                    tasks)
+         step-rng (rng/stream seed :topology iteration)]
+     (mapv #(applyTopology % remove-fixed? archive step-rng)
+           (commitNodes snapshot new-nodes)))))
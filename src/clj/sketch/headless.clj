@@ -0,0 +1,241 @@
+(ns sketch.headless
+  (:require [sketch.path :as path]
+            [sketch.shapes :as shape]
+            [sketch.grow :as grow]
+            [sketch.node_store :as node-store]
+            [sketch.rng :as rng]
+            [sketch.archive :as archive]
+            [sketch.tiles :as tiles]
+            [sketch.mapped_canvas :as mc]
+            [clojure.java.io :as io])
+  (:import [java.awt BasicStroke Color Graphics2D RenderingHints]
+           [java.awt.image BufferedImage]
+           [javax.imageio ImageIO])
+  (:gen-class))
+
+;; ------------ Headless Growth Runner -----------------
+;; Runs differential growth without opening a sketch window so long
+;; simulations can be computed on machines with no display. Only the
+;; final paths are written out, as a PNG and as EDN point data.
+
+(defn prepareGrowthPath
+  "gives every node of a path the default growth settings and frees all
+   nodes except the ends of open paths"
+  [path]
+  (let [closed? (:is-closed (:data path))
+        settings (merge path/default-node-settings grow/default-node-growth-data)
+        last-index (dec (count (:nodes path)))]
+    (assoc path
+           :settings (merge path/default-path-settings grow/default-path-growth-data)
+           :age 0
+           :nodes (vec (map-indexed
+                        (fn [node-index node]
+                          (let [end? (and (not closed?)
+                                          (or (= node-index 0) (= node-index last-index)))]
+                            (assoc node
+                                   :settings settings
+                                   :data (assoc (:data node)
+                                                :is-fixed end?
+                                                :is-end end?
+                                                :next-position (:position node)))))
+                        (:nodes path))))))
+
+(defn seedPaths
+  "builds the starting paths for a given seed shape"
+  [seed-shape width height]
+  (case seed-shape
+    "rectangle" [(prepareGrowthPath
+                  (shape/createRectangle (/ width 4) (/ height 4) {:x (/ width 2) :y (/ height 2)}))]
+    [(prepareGrowthPath
+      (path/createLinePath {:x (/ width 4) :y (/ height 2)} {:x (* 3 (/ width 4)) :y (/ height 2)}))]))
+
+(defn nodeCount
+  [paths]
+  (reduce + (map #(count (:nodes %)) paths)))
+
+(defn runGrowth
+  "runs the given number of growth iterations as a run seeded with seed and
+   returns the final paths along with timing statistics. given an archive
+   atom, staged, fused and parallel runs freeze fixed nodes into it, see
+   sketch.archive"
+  ([paths iterations width height mode seed]
+   (runGrowth paths iterations width height mode seed nil))
+  ([paths iterations width height mode seed archive]
+   (let [start (System/nanoTime)
+         opts {:archive archive}
+         [paths node-updates]
+         (rng/withSeed
+          seed
+          (case mode
+            "store" (loop [store (node-store/importPaths paths)
+                           i 0
+                           updates 0]
+                      (if (< i iterations)
+                        (recur (node-store/applyGrowth store width height)
+                               (inc i)
+                               (+ updates (long (node-store/liveCount store))))
+                        [(node-store/exportPaths store) updates]))
+            (loop [paths paths
+                   i 0
+                   updates 0]
+              (if (< i iterations)
+                (recur (case mode
+                         "parallel" (grow/applyGrowthParallel paths width height (assoc opts :seed seed :iteration i))
+                         "fused" (grow/applyGrowthFused paths width height opts)
+                         (grow/applyGrowth paths width height opts))
+                       (inc i)
+                       (+ updates (long (nodeCount paths))))
+                [paths updates]))))
+         seconds (/ (- (System/nanoTime) start) 1e9)]
+     {:paths paths
+      :iterations iterations
+      :seconds seconds
+      :iterations-per-second (/ iterations (max seconds 1e-9))
+      :nodes-per-second (/ node-updates (max seconds 1e-9))
+      :final-node-count (nodeCount paths)})))
+
+(defn checkStore
+  "grows the paths in staged mode and with the node store side by side
+   from the same seed, printing every iteration where their node counts
+   differ. returns the number of such iterations"
+  [paths iterations width height seed]
+  (rng/withSeed
+   seed
+   (loop [paths paths
+          store (node-store/importPaths paths)
+          i 0
+          differences 0]
+     (if (< i iterations)
+       (let [paths (grow/applyGrowth paths width height)
+             store (node-store/applyGrowth store width height)
+             staged (mapv #(count (:nodes %)) paths)
+             stored (mapv :count (:paths store))]
+         (when (not= staged stored)
+           (println (format "iteration %d: staged %s nodes, store %s" i staged stored)))
+         (recur paths store (inc i) (if (= staged stored) differences (inc differences))))
+       differences))))
+
+(defn- pathEdges
+  [path]
+  (let [nodes (:nodes path)]
+    (if (:is-closed (:data path))
+      (map vector nodes (concat (rest nodes) (take 1 nodes)))
+      (map vector nodes (rest nodes)))))
+
+(defn drawPaths
+  "draws the edges of every path accepted by keep-edge?, given the two end
+   positions, in white"
+  [^Graphics2D g paths keep-edge?]
+  (.setColor g Color/WHITE)
+  (.setStroke g (BasicStroke. 1.5))
+  (doseq [path paths
+          [a b] (pathEdges path)
+          :let [pa (:position a)
+                pb (:position b)]
+          :when (keep-edge? pa pb)]
+    (.drawLine g (int (:x pa)) (int (:y pa)) (int (:x pb)) (int (:y pb)))))
+
+(defn drawArchive
+  "draws the archived segments accepted by keep-edge? like drawPaths, so
+   nodes frozen out of the paths stay in the image"
+  [^Graphics2D g frozen keep-edge?]
+  (.setColor g Color/WHITE)
+  (.setStroke g (BasicStroke. 1.5))
+  (doseq [{:keys [x0 y0 x1 y1]} (archive/segments frozen)
+          :when (keep-edge? {:x x0 :y y0} {:x x1 :y y1})]
+    (.drawLine g (int x0) (int y0) (int x1) (int y1))))
+
+(defn renderPaths
+  "draws the edges of every path, and of the archive when there is one,
+   into an image"
+  ([paths width height]
+   (renderPaths paths width height nil))
+  ([paths width height frozen]
+   (let [image (BufferedImage. width height BufferedImage/TYPE_INT_RGB)
+         g (.createGraphics image)]
+     (.setRenderingHint g RenderingHints/KEY_ANTIALIASING RenderingHints/VALUE_ANTIALIAS_ON)
+     (.setColor g Color/BLACK)
+     (.fillRect g 0 0 width height)
+     (when frozen
+       (drawArchive g frozen (constantly true)))
+     (drawPaths g paths (constantly true))
+     (.dispose g)
+     image)))
+
+(defn writePoints
+  "writes the points of every path as edn"
+  [paths out-prefix]
+  (spit (str out-prefix ".edn")
+        (pr-str (mapv (fn [path]
+                        {:closed (boolean (:is-closed (:data path)))
+                         :points (mapv #(vector (:x (:position %)) (:y (:position %))) (:nodes path))})
+                      paths))))
+
+(defn exportPaths
+  "writes the rendered paths, with the frozen archive when there is one,
+   as a png and their points as edn"
+  ([paths width height out-prefix]
+   (exportPaths paths width height out-prefix nil))
+  ([paths width height out-prefix frozen]
+   (io/make-parents (str out-prefix ".png"))
+   (ImageIO/write ^BufferedImage (renderPaths paths width height frozen) "png" (io/file (str out-prefix ".png")))
+   (writePoints paths out-prefix)))
+
+(defn exportPathsTiled
+  "exportPaths for canvases too large to render whole. the paths are
+   drawn tile-size tiles at a time onto a mapped canvas, which is then
+   written as a tiff. a render of the same paths that was stopped
+   finishes the tiles it had not reached when run again"
+  ([paths width height out-prefix tile-size]
+   (exportPathsTiled paths width height out-prefix tile-size nil))
+  ([paths width height out-prefix tile-size frozen]
+   (let [canvas (mc/open (str out-prefix ".canvas") width height)
+         render-id (hash [(mapv #(mapv :position (:nodes %)) paths)
+                          (when frozen (archive/segments frozen))])]
+     (try
+       (tiles/renderToCanvas canvas tile-size
+                             (fn [g _ tile]
+                               (let [keep-edge? (fn [a b] (tiles/visible? tile (:x a) (:y a) (:x b) (:y b) 2))]
+                                 (when frozen
+                                   (drawArchive g frozen keep-edge?))
+                                 (drawPaths g paths keep-edge?)))
+                             Color/BLACK
+                             render-id)
+       (mc/exportTIFF canvas (str out-prefix ".tif") true)
+       (finally (mc/close canvas))))
+   (writePoints paths out-prefix)))
+
+(defn -main
+  "lein run -m sketch.headless iterations width height out-prefix [line|rectangle] [staged|fused|parallel|store|check] [seed] [tile-size|-] [archive]
+   given a tile size the image is rendered in tiles to a tiff. check
+   compares the node store's node counts against staged growth instead
+   of exporting. archive freezes fixed nodes into an archive that is drawn
+   with the paths, see sketch.archive"
+  [& args]
+  (System/setProperty "java.awt.headless" "true")
+  (let [[iterations width height out-prefix seed-shape mode seed tile-size frozen] args
+        iterations (Integer/parseInt (or iterations "1000"))
+        width (Integer/parseInt (or width "1000"))
+        height (Integer/parseInt (or height "1000"))
+        out-prefix (or out-prefix "saved-images/growth")
+        seed-shape (or seed-shape "line")
+        mode (or mode "parallel")
+        seed (Long/parseLong (or seed "0"))
+        tile-size (when (and tile-size (not= tile-size "-")) (Integer/parseInt tile-size))
+        archive (when (= frozen "archive")
+                  (atom (archive/createArchive (:repulsion-radius grow/default-node-growth-data))))]
+    (if (= mode "check")
+      (println (checkStore (seedPaths seed-shape width height) iterations width height seed)
+               "iterations where the node store differs from staged growth")
+      (let [result (runGrowth (seedPaths seed-shape width height) iterations width height mode seed archive)
+            frozen (when archive @archive)]
+        (if tile-size
+          (exportPathsTiled (:paths result) width height out-prefix tile-size frozen)
+          (exportPaths (:paths result) width height out-prefix frozen))
+        (println (format "%d iterations in %.2fs: %.1f iterations/sec, %.0f nodes/sec, %d nodes"
+                         (:iterations result)
+                         (double (:seconds result))
+                         (double (:iterations-per-second result))
+                         (double (:nodes-per-second result))
+                         (:final-node-count result)))))
+    (shutdown-agents)))
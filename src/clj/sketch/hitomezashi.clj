@@ -1,6 +1,7 @@
 (ns sketch.hitomezashi
-  (:require [quil.core :refer [line random]]
-            [sketch.divider :as div]) 
+  (:require [quil.core :refer [line]]
+            [sketch.divider :as div]
+            [sketch.rng :as rng]) 
   (:use [clojure.pprint]))
 
 (def vowels #{\a \e \i \o \u})
@@ -66,7 +67,7 @@
 (defn boolify-it
   "converts a given input into a boolean representation"
   [input]
-  (let [rand (random 100)
+  (let [rand (rng/uniform 100)
         axis (when (string? input)
                (if (< rand 50)
                  (filterv some? (map #(when (vowels %1) %2) input (range)))
@@ -0,0 +1,104 @@
+(ns sketch.integral)
+
+;; ------------ Summed Area Tables -----------------
+;; Running sums of the red, green and blue channels of an image, and of
+;; their squares, over every rectangle that starts at the top left corner.
+;; Any box sum is then four lookups, so the mean and variance of a region
+;; cost the same however large it is.
+;;
+;; Tables are (width + 1) by (height + 1) with a row and column of zeros
+;; in front, so a box is given by its corners x0 y0 (inclusive) and x1 y1
+;; (exclusive).
+
+(defrecord IntegralImage [width height ^longs red ^longs green ^longs blue ^longs squares])
+
+(defn fromPixels
+  "builds the tables for a width by height argb pixel array"
+  [^ints pixels width height]
+  (let [width (long width)
+        height (long height)
+        stride (inc width)
+        size (* stride (inc height))
+        red (long-array size)
+        green (long-array size)
+        blue (long-array size)
+        squares (long-array size)]
+    (dotimes [y height]
+      (loop [x 0 r 0 g 0 b 0 s 0]
+        (when (< x width)
+          (let [c (aget pixels (+ x (* y width)))
+                cr (bit-and (bit-shift-right c 16) 0xFF)
+                cg (bit-and (bit-shift-right c 8) 0xFF)
+                cb (bit-and c 0xFF)
+                r (+ r cr)
+                g (+ g cg)
+                b (+ b cb)
+                s (+ s (* cr cr) (* cg cg) (* cb cb))
+                ;; this row's running sum on top of the sums above it
+                above (+ (inc x) (* y stride))
+                i (+ above stride)]
+            (aset red i (+ r (aget red above)))
+            (aset green i (+ g (aget green above)))
+            (aset blue i (+ b (aget blue above)))
+            (aset squares i (+ s (aget squares above)))
+            (recur (inc x) r g b s)))))
+    (IntegralImage. width height red green blue squares)))
+
+(defn- tableSum
+  [^longs table stride x0 y0 x1 y1]
+  (let [stride (long stride)
+        x0 (long x0) y0 (long y0) x1 (long x1) y1 (long y1)]
+    (+ (- (aget table (+ x1 (* y1 stride)))
+          (aget table (+ x0 (* y1 stride)))
+          (aget table (+ x1 (* y0 stride))))
+       (aget table (+ x0 (* y0 stride))))))
+
+(defn- clampBox
+  "box corners as longs clipped to the image, nil when nothing is left"
+  [image x0 y0 x1 y1]
+  (let [w (long (:width image))
+        h (long (:height image))
+        x0 (max 0 (min w (long (Math/floor (double x0)))))
+        y0 (max 0 (min h (long (Math/floor (double y0)))))
+        x1 (max 0 (min w (long (Math/ceil (double x1)))))
+        y1 (max 0 (min h (long (Math/ceil (double y1)))))]
+    (when (and (< x0 x1) (< y0 y1))
+      [x0 y0 x1 y1])))
+
+(defn boxSums
+  "[red green blue squares n] summed over the box, with n its pixel count"
+  [^IntegralImage image x0 y0 x1 y1]
+  (if-let [[x0 y0 x1 y1] (clampBox image x0 y0 x1 y1)]
+    (let [stride (inc (long (.width image)))]
+      [(tableSum (.red image) stride x0 y0 x1 y1)
+       (tableSum (.green image) stride x0 y0 x1 y1)
+       (tableSum (.blue image) stride x0 y0 x1 y1)
+       (tableSum (.squares image) stride x0 y0 x1 y1)
+       (* (- x1 x0) (- y1 y0))])
+    [0 0 0 0 0]))
+
+(defn boxMean
+  "average [r g b] over the box, truncated like raster/spanAverage.
+   [0 0 0] when the box is off the image"
+  [image x0 y0 x1 y1]
+  (let [[r g b _ n] (boxSums image x0 y0 x1 y1)
+        n (max 1 n)]
+    [(quot r n) (quot g n) (quot b n)]))
+
+(defn boxVariance
+  "colour variance over the box, the variances of the three channels
+   added together"
+  [image x0 y0 x1 y1]
+  (let [[r g b s n] (boxSums image x0 y0 x1 y1)]
+    (if (zero? n)
+      0.0
+      (let [n (double n)
+            mr (/ r n) mg (/ g n) mb (/ b n)]
+        (max 0.0 (- (/ s n) (+ (* mr mr) (* mg mg) (* mb mb))))))))
+
+(defn pointsVariance
+  "colour variance over the bounding box of {:x :y} points"
+  [image points]
+  (let [xs (map :x points)
+        ys (map :y points)]
+    (boxVariance image (apply min xs) (apply min ys) (apply max xs) (apply max ys))))
@@ -0,0 +1,175 @@
+(ns sketch.mapped_canvas
+  (:require [sketch.tiff :as tiff]
+            [clojure.java.io :as io])
+  (:import [java.io RandomAccessFile]
+           [java.nio ByteBuffer ByteOrder IntBuffer]
+           [java.nio.channels FileChannel$MapMode]))
+
+;; ------------ Mapped Canvas -----------------
+;; A canvas whose argb pixels live in a memory-mapped file instead of on
+;; the heap, for prints too large for the 1200 MB the sketch runs in. The
+;; operating system pages the pixels in and out as tools touch them, and
+;; whatever was drawn is still in the file after a restart, so a long
+;; render can be picked up where it stopped.
+;;
+;; The file is a 16 byte header, magic, width and height, followed by the
+;; pixels row by row as little endian ints. A single mapping is limited to
+;; 2 GB, so the rows are mapped in bands of whole rows.
+;;
+;; Reads and writes take canvas coordinates like sketch.pixel_buffer, and
+;; anything off the canvas is ignored.
+
+(def ^:private magic 0x41525443)
+
+(def ^:private header-bytes 16)
+
+(def ^:private band-bytes (bit-shift-left 1 30))
+
+(defrecord MappedCanvas [path width height band-rows bands ^RandomAccessFile file])
+
+(defn- readHeader
+  "[width height] of an existing canvas file, nil if it is not one"
+  [^RandomAccessFile file]
+  (when (>= (.length file) header-bytes)
+    (let [header (.order (ByteBuffer/allocate header-bytes) ByteOrder/LITTLE_ENDIAN)]
+      (.read (.getChannel file) header 0)
+      (when (= magic (.getInt header 0))
+        [(.getInt header 4) (.getInt header 8)]))))
+
+(defn- writeHeader
+  [^RandomAccessFile file width height]
+  (let [header (doto (.order (ByteBuffer/allocate header-bytes) ByteOrder/LITTLE_ENDIAN)
+                 (.putInt (int magic)) (.putInt (int width)) (.putInt (int height)) (.putInt 0)
+                 (.flip))]
+    (.write (.getChannel file) header 0)))
+
+(defn open
+  "opens the canvas file at path, creating a transparent width by height
+   canvas when there is none. an existing canvas of the same size is
+   opened as it was left, one of another size is replaced"
+  [path width height]
+  (io/make-parents path)
+  (let [width (long width)
+        height (long height)
+        file (RandomAccessFile. (io/file path) "rw")
+        size (+ header-bytes (* 4 width height))]
+    (when-not (= [width height] (some->> (readHeader file) (mapv long)))
+      (.setLength file 0)
+      (.setLength file size)
+      (writeHeader file width height))
+    (let [channel (.getChannel file)
+          band-rows (max 1 (quot band-bytes (* 4 width)))
+          bands (mapv (fn [top]
+                        (let [rows (min band-rows (- height top))]
+                          (-> (.map channel FileChannel$MapMode/READ_WRITE
+                                    (+ header-bytes (* 4 width top)) (* 4 width rows))
+                              (.order ByteOrder/LITTLE_ENDIAN)
+                              (.asIntBuffer))))
+                      (range 0 height band-rows))]
+      (MappedCanvas. path width height band-rows bands file))))
+
+(defn close
+  "flushes the canvas to its file and closes it"
+  [^MappedCanvas canvas]
+  (.force (.getChannel ^RandomAccessFile (.file canvas)) true)
+  (.close ^RandomAccessFile (.file canvas)))
+
+(defn- band
+  ^IntBuffer [^MappedCanvas canvas y]
+  (nth (.bands canvas) (quot (long y) (long (.band-rows canvas)))))
+
+(defn- bandIndex
+  [^MappedCanvas canvas x y]
+  (+ (long x) (* (rem (long y) (long (.band-rows canvas))) (long (.width canvas)))))
+
+;; ------------ Reads and Writes -----------------
+
+(defn inside?
+  [^MappedCanvas canvas x y]
+  (let [x (long x) y (long y)]
+    (and (>= x 0) (>= y 0) (< x (long (.width canvas))) (< y (long (.height canvas))))))
+
+(defn getPixel
+  "argb colour at x y, 0 off the canvas"
+  [canvas x y]
+  (if (inside? canvas x y)
+    (.get (band canvas y) (int (bandIndex canvas x y)))
+    0))
+
+(defn setPixel!
+  "writes an argb colour at x y"
+  [canvas x y argb]
+  (when (inside? canvas x y)
+    (.put (band canvas y) (int (bandIndex canvas x y)) (unchecked-int argb))))
+
+(defn readRow!
+  "copies n pixels of row y starting at x into pixels from offset on"
+  [canvas x y ^ints pixels offset n]
+  (doto (.duplicate (band canvas y))
+    (.position (int (bandIndex canvas x y)))
+    (.get pixels (int offset) (int n))))
+
+(defn writeRow!
+  "copies n pixels from offset on in pixels into row y starting at x"
+  [canvas x y ^ints pixels offset n]
+  (doto (.duplicate (band canvas y))
+    (.position (int (bandIndex canvas x y)))
+    (.put pixels (int offset) (int n))))
+
+(defn fillRect!
+  "writes one argb colour into the box x0 y0 (inclusive) to x1 y1
+   (exclusive), clipped to the canvas"
+  [^MappedCanvas canvas x0 y0 x1 y1 argb]
+  (let [x0 (max 0 (long x0))
+        y0 (max 0 (long y0))
+        x1 (min (long (.width canvas)) (long x1))
+        y1 (min (long (.height canvas)) (long y1))]
+    (when (< x0 x1)
+      (let [row (int-array (- x1 x0) (unchecked-int argb))]
+        (loop [y y0]
+          (when (< y y1)
+            (writeRow! canvas x0 y row 0 (alength row))
+            (recur (inc y))))))))
+
+(defn fillSpans!
+  "writes one argb colour into every pixel under the spans, see
+   sketch.raster"
+  [^MappedCanvas canvas spans argb]
+  (doseq [[y x0 x1] spans]
+    (fillRect! canvas x0 y x1 (inc (long y)) argb)))
+
+(defn fillPixels!
+  "writes one argb colour at every {:x :y} pixel of a collection"
+  [canvas pixel-collection argb]
+  (doseq [p pixel-collection]
+    (setPixel! canvas (:x p) (:y p) argb)))
+
+(defn writeBlock!
+  "copies a width by height block of a pixel array with the given stride
+   onto the canvas with its top left corner at left top, clipped to the
+   canvas"
+  [^MappedCanvas canvas ^ints pixels stride left top width height]
+  (let [left (long left) top (long top) stride (long stride)
+        x0 (max 0 left)
+        x1 (min (long (.width canvas)) (+ left (long width)))]
+    (when (< x0 x1)
+      (doseq [y (range (max 0 top) (min (long (.height canvas)) (+ top (long height))))]
+        (writeRow! canvas x0 y pixels (+ (- x0 left) (* (- (long y) top) stride)) (- x1 x0))))))
+
+;; ------------ Export -----------------
+
+(defn exportTIFF
+  "writes the canvas as a TIFF, streaming it a row at a time. LZW
+   compressed when compress? is true"
+  ([canvas path]
+   (exportTIFF canvas path false))
+  ([^MappedCanvas canvas path compress?]
+   (let [width (.width canvas)
+         row (int-array width)
+         fill (tiff/pixelRow row width)
+         fill-row (fn [y bytes]
+                    (readRow! canvas 0 y row 0 width)
+                    (fill 0 bytes))]
+     (if compress?
+       (tiff/writeRows path width (.height canvas) fill-row tiff/lzw-compression (tiff/lzw))
+       (tiff/writeRows path width (.height canvas) fill-row)))))
@@ -0,0 +1,274 @@
+(ns sketch.mesh
+  (:require [sketch.path :as path])
+  (:import [java.util HashMap HashSet]))
+
+;; ------------ Half-Edge Mesh -----------------
+;; A triangle map as a half-edge mesh. Each triangle owns three half-edges
+;; wound the same way, 3f, 3f + 1 and 3f + 2 for face f, so the next and
+;; previous half-edge in a face is index arithmetic. Each half-edge knows
+;; the vertex it leaves from and its twin running the other way in the
+;; neighboring triangle, -1 on the boundary. Walking to a neighbor, around
+;; a vertex or along an edge is then O(1) per step, without searching the
+;; triangles.
+;;
+;; Dividing a triangle leaves its new node partway along the edge of the
+;; triangle next to it. The triangle map records every divided edge in
+;; :splits, and those neighbors are split at the same nodes so that every
+;; edge has the same two ends seen from either side.
+;;
+;; Vertices are numbered from 0 in the order their nodes are first met.
+;; ids holds each vertex's node id and index maps a node id back to its
+;; vertex.
+
+(defrecord Mesh [ids index ^doubles xs ^doubles ys ^ints origin ^ints twin ^ints vertex-edge])
+
+(defn nextEdge
+  "the half-edge after h in its face"
+  [h]
+  (if (= 2 (mod h 3)) (- h 2) (inc h)))
+
+(defn prevEdge
+  "the half-edge before h in its face"
+  [h]
+  (if (zero? (mod h 3)) (+ h 2) (dec h)))
+
+(defn face
+  "the face a half-edge belongs to"
+  [h]
+  (quot h 3))
+
+(defn- edgeKey
+  [a b]
+  (bit-or (bit-shift-left (long a) 32) (long b)))
+
+(defn fromArrays
+  "a mesh from the origin and twin of every half-edge, with
+   ids the node id of each vertex and index mapping an id to its vertex"
+  [ids index ^doubles xs ^doubles ys ^ints origin ^ints twin]
+  (let [vertex-edge (int-array (alength xs) -1)]
+    (dotimes [h (alength origin)]
+      (when (neg? (aget vertex-edge (aget origin h)))
+        (aset vertex-edge (aget origin h) h)))
+    ;; start each vertex on a boundary edge where it has one, so one sweep
+    ;; around it meets every neighbor
+    (dotimes [h (alength origin)]
+      (when (neg? (aget twin h))
+        (aset vertex-edge (aget origin h) h)))
+    (Mesh. ids index xs ys origin twin vertex-edge)))
+
+(defn- conform
+  "splits triangles at hanging nodes. dividing a triangle along one edge
+   leaves a node partway along its neighbor's edge, and the neighbor is
+   split there too so the edge can be paired from both sides. split gives
+   the vertex an edge x y was divided at, or nil"
+  [faces split]
+  (let [out (HashMap.)
+        link! (fn [a b]
+                (when-not (.containsKey out a) (.put out a (HashSet.)))
+                (.add ^HashSet (.get out a) b))
+        unlink! (fn [a b] (some-> ^HashSet (.get out a) (.remove b)))
+        linked? (fn [a b] (boolean (some-> ^HashSet (.get out a) (.contains b))))]
+    (doseq [[a b c] faces]
+      (link! a b) (link! b c) (link! c a))
+    (loop [work (into clojure.lang.PersistentQueue/EMPTY faces)
+           done (transient [])]
+      (if-let [[a b c :as f] (peek work)]
+        (if-let [[x y opposite m] (some (fn [[x y opposite]]
+                                          (when-not (linked? y x)
+                                            (when-let [m (split x y)]
+                                              (when-not (#{x y opposite} m)
+                                                [x y opposite m]))))
+                                        [[a b c] [b c a] [c a b]])]
+          (do (unlink! x y)
+              (link! x m) (link! m y) (link! m opposite) (link! opposite m)
+              (recur (-> (pop work) (conj [x m opposite]) (conj [m y opposite])) done))
+          (recur (pop work) (conj! done f)))
+        (persistent! done)))))
+
+(defn- splitFinder
+  "from the divided edges of a triangle map, a function giving the vertex
+   next along edge x y from x, or nil when x y is undivided. triangles on
+   both sides of an edge may divide it at different points, so the points
+   of every segment the division started from are gathered and ordered
+   along it"
+  [splits index ^doubles xs ^doubles ys]
+  (let [segment (fn [a b] (edgeKey (min a b) (max a b)))
+        ;; splits by vertex pair, skipping nodes the mesh left out
+        divided (HashMap.)
+        _ (doseq [[k ms] splits
+                  :let [[a b] (map index k)
+                        ms (keep index ms)]
+                  :when (and a b (seq ms))]
+            (.put divided (segment a b) [a b ms]))
+        children (fn [[a b ms]] (mapcat (fn [m] [(segment a m) (segment m b)]) ms))
+        child? (HashSet.)
+        _ (doseq [split (.values divided)]
+            (.addAll child? (children split)))
+        ;; the ordered segments each vertex lies on
+        lines (HashMap.)]
+    (doseq [[k [a b] :as root] divided
+            :when (not (.contains child? k))]
+      (let [points (loop [stack [root] points [a b]]
+                     (if-let [[_ [_ _ ms :as split]] (peek stack)]
+                       (recur (into (pop stack)
+                                    (keep #(when-let [s (.get divided %)] [% s]))
+                                    (children split))
+                              (into points ms))
+                       (distinct points)))
+            dx (- (aget xs (int b)) (aget xs (int a)))
+            dy (- (aget ys (int b)) (aget ys (int a)))
+            order (vec (sort-by #(+ (* dx (- (aget xs (int %)) (aget xs (int a))))
+                                    (* dy (- (aget ys (int %)) (aget ys (int a)))))
+                                points))
+            line {:order order :at (zipmap order (range))}]
+        (doseq [v order]
+          (.put lines v (conj (.get lines v) line)))))
+    (fn [x y]
+      (some (fn [{:keys [order at]}]
+              (let [i (at x) j (at y)]
+                (when (and i j (> (Math/abs (- (long i) (long j))) 1))
+                  (order (if (< i j) (inc i) (dec i))))))
+            (.get lines x)))))
+
+(defn fromTriangleMap
+  "builds the mesh of a triangle map. triangles are wound consistently
+   and split at the hanging nodes recorded in the map's :splits first.
+   triangles using a node twice are left out, and an edge shared by more
+   than two triangles only pairs the first two. that happens to a few
+   slivers a pixel or two across, bent by rounding to the pixel grid"
+  [triangle-map]
+  (let [nodes (:nodes triangle-map)
+        corners (keep (fn [tri]
+                        (let [ids (mapv (:nodes tri) [:node-a :node-b :node-c])]
+                          (when (= 3 (count (distinct ids))) ids)))
+                      (:triangles triangle-map))
+        index (HashMap.)
+        ids (persistent! (reduce (fn [ids id]
+                                   (if (.containsKey index id)
+                                     ids
+                                     (do (.put index id (count ids)) (conj! ids id))))
+                                 (transient [])
+                                 (apply concat corners)))
+        index (into {} index)
+        xs (double-array (map #(double (:x (:position (nodes %)))) ids))
+        ys (double-array (map #(double (:y (:position (nodes %)))) ids))
+        faces (mapv (fn [[a b c]]
+                      (let [a (index a) b (index b) c (index c)
+                            turn (- (* (- (aget xs b) (aget xs a)) (- (aget ys c) (aget ys a)))
+                                    (* (- (aget ys b) (aget ys a)) (- (aget xs c) (aget xs a))))]
+                        (if (neg? turn) [a c b] [a b c])))
+                    corners)
+        faces (conform faces (splitFinder (:splits triangle-map {}) index xs ys))
+        half-edges (* 3 (count faces))
+        origin (int-array half-edges)
+        twin (int-array half-edges -1)
+        directed (HashMap.)]
+    (doseq [[f vertices] (map-indexed vector faces)
+            i (range 3)]
+      (let [h (+ (* 3 f) i)
+            a (vertices i)
+            b (vertices (mod (inc i) 3))]
+        (aset origin h (int a))
+        (if-let [other (.get directed (edgeKey b a))]
+          (when (neg? (aget twin (int other)))
+            (aset twin h (int other))
+            (aset twin (int other) (int h)))
+          (.put directed (edgeKey a b) h))))
+    (fromArrays ids index xs ys origin twin)))
+
+(defn vertexCount
+  [^Mesh mesh]
+  (count (.ids mesh)))
+
+(defn faceCount
+  [^Mesh mesh]
+  (quot (alength ^ints (.origin mesh)) 3))
+
+(defn origin
+  "the vertex a half-edge leaves from"
+  [^Mesh mesh h]
+  (aget ^ints (.origin mesh) (int h)))
+
+(defn destination
+  "the vertex a half-edge runs to"
+  [mesh h]
+  (origin mesh (nextEdge h)))
+
+(defn twinEdge
+  "the half-edge running the other way along the same edge, nil on the
+   boundary"
+  [^Mesh mesh h]
+  (let [t (aget ^ints (.twin mesh) (int h))]
+    (when-not (neg? t) t)))
+
+(defn boundary?
+  "true when a half-edge has no triangle on its other side"
+  [mesh h]
+  (nil? (twinEdge mesh h)))
+
+(defn position
+  "{:x :y} of a vertex"
+  [^Mesh mesh v]
+  {:x (aget ^doubles (.xs mesh) (int v)) :y (aget ^doubles (.ys mesh) (int v))})
+
+(defn edgeLength
+  [^Mesh mesh h]
+  (let [^doubles xs (.xs mesh)
+        ^doubles ys (.ys mesh)
+        a (origin mesh h)
+        b (destination mesh h)]
+    (Math/hypot (- (aget xs b) (aget xs a)) (- (aget ys b) (aget ys a)))))
+
+(defn outgoing
+  "every half-edge leaving a vertex, turning one way around it from its
+   start edge"
+  [^Mesh mesh v]
+  (let [start (aget ^ints (.vertex-edge mesh) (int v))]
+    (when-not (neg? start)
+      (loop [edges [start]]
+        (let [h (twinEdge mesh (prevEdge (peek edges)))]
+          (if (or (nil? h) (= h start))
+            edges
+            (recur (conj edges h))))))))
+
+(defn neighbors
+  "vertices sharing an edge with v. on the boundary the last neighbor is
+   only reached along the edge coming in"
+  [mesh v]
+  (let [edges (outgoing mesh v)
+        last-edge (peek edges)]
+    (cond-> (mapv #(destination mesh %) edges)
+      (and last-edge (boundary? mesh (prevEdge last-edge)))
+      (conj (origin mesh (prevEdge last-edge))))))
+
+(defn neighborIds
+  "node ids of the nodes sharing an edge with the given node"
+  [^Mesh mesh id]
+  (when-let [v ((.index mesh) id)]
+    (mapv (.ids mesh) (neighbors mesh v))))
+
+(defn edges
+  "one half-edge for every edge of the mesh"
+  [^Mesh mesh]
+  (let [^ints twin (.twin mesh)]
+    (filter #(< (aget twin (int %)) (int %)) (range (alength twin)))))
+
+(defn boundaryEdges
+  "the half-edges with no triangle on their other side"
+  [mesh]
+  (filter #(boundary? mesh %) (range (* 3 (faceCount mesh)))))
+
+;; ------------ Growth Seeds -----------------
+
+(defn edgePath
+  "a growth path running along the given half-edge"
+  [mesh h]
+  (path/createLinePath (position mesh (origin mesh h)) (position mesh (destination mesh h))))
+
+(defn edgePaths
+  "a growth path along every edge the keep? predicate accepts, given the
+   mesh and a half-edge"
+  ([mesh]
+   (edgePaths mesh (constantly true)))
+  ([mesh keep?]
+   (mapv #(edgePath mesh %) (filter #(keep? mesh %) (edges mesh)))))
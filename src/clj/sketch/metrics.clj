@@ -0,0 +1,211 @@
+(ns sketch.metrics
+  (:require [clojure.java.io :as io]
+            [clojure.string :as string]))
+
+;; ------------ Growth Metrics -----------------
+;; Opt-in instrumentation for the growth loops. While profiling is on,
+;; every growth step is recorded as a frame holding the wall time spent
+;; in each phase and a set of counters. Frames are folded into an
+;; in-memory metrics map and can also be appended to a rolling JSONL log.
+;; When profiling is off the measure/addCount forms only cost a var read.
+
+(def ^:dynamic *frame*
+  "atom collecting the phases and counters of the step being profiled"
+  nil)
+
+(def default-metrics-settings
+  {:history-size 120
+   :log-file nil
+   :max-log-bytes (* 10 1024 1024)
+   :max-log-files 5})
+
+(def metrics (atom {:profiling? false
+                    :settings default-metrics-settings
+                    :frames 0
+                    :totals {:phases {} :counts {}}
+                    :last-frame nil
+                    :history []}))
+
+(defn startProfiling
+  "turns profiling on. settings are merged over default-metrics-settings,
+   set :log-file to also append every frame to a JSONL log"
+  ([] (startProfiling {}))
+  ([settings]
+   (swap! metrics assoc
+          :profiling? true
+          :settings (merge default-metrics-settings settings))))
+
+(defn stopProfiling
+  []
+  (swap! metrics assoc :profiling? false))
+
+(defn profiling?
+  []
+  (:profiling? @metrics))
+
+(defn resetMetrics
+  "clears everything recorded so far, keeping the profiling settings"
+  []
+  (swap! metrics assoc
+         :frames 0
+         :totals {:phases {} :counts {}}
+         :last-frame nil
+         :history []))
+
+(defn addTime
+  [frame phase nanos]
+  (swap! frame
+         #(-> %
+              (update-in [:phases phase :nanos] (fnil + 0) nanos)
+              (update-in [:phases phase :calls] (fnil inc 0)))))
+
+(defmacro measure
+  "evaluates body, adding its wall time to the given phase of the frame
+   being profiled"
+  [phase & body]
+  `(if-let [frame# *frame*]
+     (let [start# (System/nanoTime)
+           result# (do ~@body)]
+       (addTime frame# ~phase (- (System/nanoTime) start#))
+       result#)
+     (do ~@body)))
+
+(defmacro addCount
+  "adds n to a counter of the frame being profiled. n is only evaluated
+   while profiling"
+  [counter n]
+  `(when-let [frame# *frame*]
+     (swap! frame# update-in [:counts ~counter] (fnil + 0) ~n)))
+
+;; ------------ JSONL Log -----------------
+
+(defn- escapeJson
+  [s]
+  (let [sb (StringBuilder.)]
+    (doseq [c s]
+      (case c
+        \" (.append sb "\\\"")
+        \\ (.append sb "\\\\")
+        \newline (.append sb "\\n")
+        \return (.append sb "\\r")
+        \tab (.append sb "\\t")
+        (if (< (int c) 0x20)
+          (.append sb (format "\\u%04x" (int c)))
+          (.append sb c))))
+    (str sb)))
+
+(defn toJson
+  "encodes maps, sequences, strings, keywords, numbers, booleans and nil
+   as a single line of json"
+  [value]
+  (cond
+    (nil? value) "null"
+    (true? value) "true"
+    (false? value) "false"
+    (keyword? value) (str "\"" (escapeJson (name value)) "\"")
+    (string? value) (str "\"" (escapeJson value) "\"")
+    (integer? value) (str value)
+    (number? value) (let [d (double value)]
+                      (if (or (Double/isNaN d) (Double/isInfinite d)) "null" (str d)))
+    (map? value) (str "{"
+                      (string/join "," (map (fn [[k v]]
+                                              (str (toJson (if (keyword? k) k (str k))) ":" (toJson v)))
+                                            value))
+                      "}")
+    (sequential? value) (str "[" (string/join "," (map toJson value)) "]")
+    :else (toJson (str value))))
+
+(defn- rotateLog
+  "shifts log-file to log-file.1, log-file.1 to log-file.2 and so on,
+   dropping the oldest once max-files are kept"
+  [log-file max-files]
+  (doseq [i (range (dec max-files) 0 -1)]
+    (let [older (io/file (str log-file "." i))]
+      (when (.exists older)
+        (.renameTo older (io/file (str log-file "." (inc i)))))))
+  (.renameTo (io/file log-file) (io/file (str log-file ".1"))))
+
+(defn appendLog
+  "appends a frame as one json line, rotating the log once it grows past
+   max-log-bytes"
+  [{:keys [log-file max-log-bytes max-log-files]} frame]
+  (when log-file
+    (let [file (io/file log-file)]
+      (io/make-parents file)
+      (when (and (.exists file) (> (.length file) max-log-bytes))
+        (rotateLog log-file max-log-files))
+      (spit file (str (toJson frame) "\n") :append true))))
+
+;; ------------ Frames -----------------
+
+(defn- nanosToMillis
+  [nanos]
+  (/ nanos 1e6))
+
+(defn- mergeTotals
+  [totals frame]
+  {:phases (merge-with (partial merge-with +) (:phases totals) (:phases frame))
+   :counts (merge-with + (:counts totals) (:counts frame))})
+
+(defn recordFrame
+  "folds a finished frame into the metrics map and the log"
+  [label frame total-nanos]
+  (let [frame (assoc-in frame [:phases :total] {:nanos total-nanos :calls 1})
+        state (swap! metrics
+                     (fn [state]
+                       (let [entry (assoc frame
+                                          :label label
+                                          :frame (inc (:frames state))
+                                          :time (System/currentTimeMillis))]
+                         (assoc state
+                                :frames (inc (:frames state))
+                                :totals (mergeTotals (:totals state) frame)
+                                :last-frame entry
+                                :history (vec (take-last (:history-size (:settings state))
+                                                         (conj (:history state) entry)))))))
+        entry (:last-frame state)]
+    (appendLog (:settings state)
+               (assoc entry :phases (into {} (map (fn [[phase {:keys [nanos calls]}]]
+                                                    [phase {:ms (nanosToMillis nanos) :calls calls}])
+                                                  (:phases entry)))))
+    entry))
+
+(defmacro profileFrame
+  "evaluates body as one profiled growth step when profiling is on"
+  [label & body]
+  `(if (profiling?)
+     (let [frame# (atom {:phases {} :counts {}})
+           start# (System/nanoTime)
+           result# (binding [*frame* frame#] ~@body)]
+       (recordFrame ~label @frame# (- (System/nanoTime) start#))
+       result#)
+     (do ~@body)))
+
+;; ------------ Queries -----------------
+
+(defn metricsSnapshot
+  "the current metrics map"
+  []
+  @metrics)
+
+(defn phaseReport
+  "average milliseconds and share of the step time per phase across every
+   recorded frame, slowest first"
+  []
+  (let [{:keys [frames totals]} @metrics
+        total (get-in totals [:phases :total :nanos] 0)]
+    (when (pos? frames)
+      (->> (:phases totals)
+           (map (fn [[phase {:keys [nanos calls]}]]
+                  {:phase phase
+                   :ms-per-frame (/ (nanosToMillis nanos) frames)
+                   :calls-per-frame (/ calls (double frames))
+                   :share (if (pos? total) (/ nanos (double total)) 0)}))
+           (sort-by :ms-per-frame >)))))
+
+(defn countReport
+  "average of each counter per recorded frame"
+  []
+  (let [{:keys [frames totals]} @metrics]
+    (when (pos? frames)
+      (into {} (map (fn [[counter n]] [counter (/ n (double frames))]) (:counts totals))))))
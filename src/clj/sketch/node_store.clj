@@ -0,0 +1,621 @@
+(ns sketch.node_store
+  (:require [quil.core :refer :all]
+            [sketch.path :as path]
+            [sketch.grow :as grow]
+            [sketch.rng :as rng]))
+
+;; ------------ Structure-of-Arrays Node Store -----------------
+;; An alternative growth backend that keeps every node of every path in
+;; primitive columns instead of Node records. Each node owns a stable
+;; index into the columns for as long as it is alive; paths are doubly
+;; linked lists threaded through the prev/next columns so nodes can be
+;; inserted and removed without shifting any other node.
+;;
+;; A store is meant to be kept from step to step, so the path edits of a
+;; step (splitting, pruning and injecting nodes) are constant time splices
+;; next to the node being visited instead of rebuilds of a nodes vector.
+;; Released slots go on a free list and are handed out again, and the
+;; columns double when they run out, so insertion is amortised constant
+;; time as well.
+;;
+;; importPaths/exportPaths convert to and from the Path/Node records so
+;; drawing and tree code keep working on the results.
+
+(def ^:const NIL -1)
+
+;; flag bits
+(def ^:const FIXED 1)
+(def ^:const END 2)
+(def ^:const RANDOM 4)
+(def ^:const TO-REMOVE 8)
+;; no next position yet, it follows the position like grow/nextPosition
+(def ^:const UNMOVED 16)
+
+;; columns of a parameter block
+(def ^:const MIN-DISTANCE 0)
+(def ^:const MAX-DISTANCE 1)
+(def ^:const REPULSION-RADIUS 2)
+(def ^:const REPULSION-FORCE 3)
+(def ^:const ATTRACTION-FORCE 4)
+(def ^:const BROWNIAN-RANGE 5)
+(def ^:const MAX-VELOCITY 6)
+(def ^:const ALIGNMENT-FORCE 7)
+(def ^:const PARAM-COUNT 8)
+
+;; counters
+(def ^:const HIGH-WATER 0)
+(def ^:const FREE-TOP 1)
+
+(defrecord NodeStore [ids xs ys nxs nys ages flags params prev next data
+                      free counters param-table paths])
+
+(defn createStore
+  "allocates an empty store able to hold the given number of nodes"
+  [capacity]
+  (let [capacity (max 16 capacity)]
+    (NodeStore.
+     (long-array capacity)
+     (double-array capacity)
+     (double-array capacity)
+     (double-array capacity)
+     (double-array capacity)
+     (int-array capacity)
+     (int-array capacity)
+     (int-array capacity)
+     (int-array capacity NIL)
+     (int-array capacity NIL)
+     (object-array capacity)
+     (int-array capacity)
+     (long-array 2)
+     []
+     [])))
+
+(defn capacity
+  "number of node slots currently allocated"
+  [store]
+  (alength ^longs (:ids store)))
+
+(defn liveCount
+  "number of nodes currently alive in the store"
+  [store]
+  (let [^longs counters (:counters store)]
+    (- (aget counters HIGH-WATER) (aget counters FREE-TOP))))
+
+(defn- grow-column
+  [column new-capacity]
+  (let [new-capacity (int new-capacity)]
+    (condp instance? column
+      (Class/forName "[J") (java.util.Arrays/copyOf ^longs column new-capacity)
+      (Class/forName "[D") (java.util.Arrays/copyOf ^doubles column new-capacity)
+      (Class/forName "[I") (java.util.Arrays/copyOf ^ints column new-capacity)
+      (java.util.Arrays/copyOf ^objects column new-capacity))))
+
+(defn ensureCapacity
+  "returns a store that can hold at least the given number of nodes,
+   copying the columns into larger arrays when needed"
+  [store required]
+  (if (<= required (capacity store))
+    store
+    (let [old-capacity (capacity store)
+          new-capacity (max required (* 2 old-capacity))
+          store (reduce
+                 (fn [s k] (assoc s k (grow-column (get s k) new-capacity)))
+                 store
+                 [:ids :xs :ys :nxs :nys :ages :flags :params :prev :next :data :free])]
+      (java.util.Arrays/fill ^ints (:prev store) (int old-capacity) (int new-capacity) (int NIL))
+      (java.util.Arrays/fill ^ints (:next store) (int old-capacity) (int new-capacity) (int NIL))
+      store)))
+
+(defn- reserve
+  "returns a store with room for n more nodes, whatever slots are free"
+  [store n]
+  (ensureCapacity store (+ (aget ^longs (:counters store) HIGH-WATER) (long n))))
+
+(defn- alloc-node
+  "claims a free slot, reusing released indices first"
+  ^long [store]
+  (let [^longs counters (:counters store)
+        ^ints free (:free store)
+        top (aget counters FREE-TOP)]
+    (if (> top 0)
+      (do (aset counters FREE-TOP (dec top))
+          (aget free (int (dec top))))
+      (let [idx (aget counters HIGH-WATER)]
+        (aset counters HIGH-WATER (inc idx))
+        idx))))
+
+(defn- release-node
+  [store ^long idx]
+  (let [^longs counters (:counters store)
+        ^ints free (:free store)
+        top (aget counters FREE-TOP)]
+    (aset free (int top) (int idx))
+    (aset counters FREE-TOP (inc top))
+    (aset ^ints (:flags store) idx (int 0))
+    (aset ^objects (:data store) idx nil)
+    (aset ^ints (:prev store) idx (int NIL))
+    (aset ^ints (:next store) idx (int NIL))))
+
+;; ------------ Import / Export -----------------
+
+(defn- resolve-settings
+  [path node]
+  (if (:uniform-node-settings? (:settings path))
+    (:settings path)
+    (:settings node)))
+
+(defn- resolve-data
+  [path node]
+  (if (:uniform-node-settings? (:settings path))
+    (:data path)
+    (:data node)))
+
+(defn- param-block
+  "resolves the growth parameters of a node into a primitive block"
+  [settings data]
+  (let [setting (fn [k] (double (or (get settings k) (get grow/default-node-growth-data k))))
+        values (double-array PARAM-COUNT)]
+    (aset values MIN-DISTANCE (double (or (:min-distance data) (setting :min-distance))))
+    (aset values MAX-DISTANCE (double (setting :max-distance)))
+    (aset values REPULSION-RADIUS (double (setting :repulsion-radius)))
+    (aset values REPULSION-FORCE (double (setting :repulsion-force)))
+    (aset values ATTRACTION-FORCE (double (setting :attraction-force)))
+    (aset values BROWNIAN-RANGE (double (setting :brownian-motion-range)))
+    (aset values MAX-VELOCITY (double (setting :max-velocity)))
+    (aset values ALIGNMENT-FORCE (double (setting :allignment-force)))
+    values))
+
+(defn- node-flags
+  [node]
+  (let [data (:data node)]
+    (bit-or (if (:is-fixed data) FIXED 0)
+            (if (:is-end data) END 0)
+            (if (:is-random data) RANDOM 0)
+            (if (:next-position data) 0 UNMOVED))))
+
+(defn importPaths
+  "copies the given paths into a new store"
+  [paths]
+  (let [total (reduce + (map #(count (:nodes %)) paths))
+        store (createStore (* 2 total))
+        param-index (atom {})
+        param-table (atom [])
+        param-id (fn [settings data]
+                   (let [k [settings (:min-distance data)]]
+                     (or (get @param-index k)
+                         (let [id (count @param-table)]
+                           (swap! param-table conj {:settings settings
+                                                    :values (param-block settings data)})
+                           (swap! param-index assoc k id)
+                           id))))
+        ^longs ids (:ids store)
+        ^doubles xs (:xs store)
+        ^doubles ys (:ys store)
+        ^doubles nxs (:nxs store)
+        ^doubles nys (:nys store)
+        ^ints ages (:ages store)
+        ^ints flags (:flags store)
+        ^ints params (:params store)
+        ^ints prev (:prev store)
+        ^ints next (:next store)
+        ^objects data (:data store)
+        path-table (mapv
+                    (fn [path]
+                      (let [indices (mapv
+                                     (fn [node]
+                                       (let [idx (alloc-node store)
+                                             x (double (:x (:position node)))
+                                             y (double (:y (:position node)))
+                                             next-position (:next-position (:data node))]
+                                         (aset ids idx (long (:ID node)))
+                                         (aset xs idx x)
+                                         (aset ys idx y)
+                                         (aset nxs idx (double (or (:x next-position) x)))
+                                         (aset nys idx (double (or (:y next-position) y)))
+                                         (aset ages idx (int (or (:age (:data node)) 0)))
+                                         (aset flags idx (int (node-flags node)))
+                                         (aset params idx (int (param-id (resolve-settings path node)
+                                                                         (resolve-data path node))))
+                                         (aset data idx (:data node))
+                                         idx))
+                                     (:nodes path))]
+                        (doseq [[a b] (partition 2 1 indices)]
+                          (aset next (int a) (int b))
+                          (aset prev (int b) (int a)))
+                        {:head (if (empty? indices) NIL (first indices))
+                         :tail (if (empty? indices) NIL (peek indices))
+                         :count (count indices)
+                         :path (assoc path :nodes [])}))
+                    paths)]
+    (assoc store :param-table @param-table :paths path-table)))
+
+(defn pathIndices
+  "returns the store indices of a path's nodes in path order"
+  [store path-entry]
+  (let [^ints next (:next store)]
+    (loop [idx (int (:head path-entry))
+           out (transient [])]
+      (if (= idx NIL)
+        (persistent! out)
+        (recur (aget next idx) (conj! out idx))))))
+
+(defn exportNode
+  "rebuilds a Node record from the columns at the given index"
+  [store idx]
+  (let [idx (int idx)
+        flag (aget ^ints (:flags store) idx)
+        settings (:settings (get (:param-table store) (aget ^ints (:params store) idx)))
+        data (merge path/default-node-data
+                    (aget ^objects (:data store) idx)
+                    {:age (aget ^ints (:ages store) idx)
+                     :is-fixed (not (zero? (bit-and flag FIXED)))
+                     :is-end (not (zero? (bit-and flag END)))
+                     :is-random (not (zero? (bit-and flag RANDOM)))}
+                    (when (zero? (bit-and flag UNMOVED))
+                      {:next-position {:x (aget ^doubles (:nxs store) idx)
+                                       :y (aget ^doubles (:nys store) idx)}}))]
+    (path/->Node (aget ^longs (:ids store) idx)
+                 (path/->Position2D (aget ^doubles (:xs store) idx)
+                                    (aget ^doubles (:ys store) idx))
+                 settings
+                 data)))
+
+(defn exportPaths
+  "rebuilds Path records, with their nodes, from the store"
+  [store]
+  (mapv
+   (fn [entry]
+     (assoc (:path entry) :nodes (mapv #(exportNode store %) (pathIndices store entry))))
+   (:paths store)))
+
+;; ------------ Path Container -----------------
+;; Cursor operations on a path entry. idx and target are store indices;
+;; each returns the updated entry.
+
+(defn insertBefore!
+  "links node idx into a path directly before the node at target"
+  [store entry ^long target ^long idx]
+  (let [^ints prev (:prev store)
+        ^ints next (:next store)
+        before (aget prev target)]
+    (aset prev idx (int before))
+    (aset next idx (int target))
+    (aset prev target (int idx))
+    (if (= before NIL)
+      (assoc entry :head idx :count (inc (:count entry)))
+      (do (aset next before (int idx))
+          (update entry :count inc)))))
+
+(defn insertAfter!
+  "links node idx into a path directly after the node at target"
+  [store entry ^long target ^long idx]
+  (let [^ints prev (:prev store)
+        ^ints next (:next store)
+        after (aget next target)]
+    (aset next idx (int after))
+    (aset prev idx (int target))
+    (aset next target (int idx))
+    (if (= after NIL)
+      (assoc entry :tail idx :count (inc (:count entry)))
+      (do (aset prev after (int idx))
+          (update entry :count inc)))))
+
+(defn removeNode!
+  "unlinks node idx from a path and releases its slot"
+  [store entry ^long idx]
+  (let [^ints prev (:prev store)
+        ^ints next (:next store)
+        before (aget prev idx)
+        after (aget next idx)
+        entry (if (= before NIL)
+                (assoc entry :head after)
+                (do (aset next before after) entry))
+        entry (if (= after NIL)
+                (assoc entry :tail before)
+                (do (aset prev after before) entry))]
+    (release-node store idx)
+    (update entry :count dec)))
+
+(defn connectedNodes
+  "[prev next] indices of a node following the rules of path/getConnectedNodes.
+   like the grow stage it stands in for, only curvature injection reads
+   the closed flag from the path's data, the other stages read it from
+   the path itself and so treat Path records as open"
+  ([store entry idx]
+   (connectedNodes store entry idx (:is-closed (:path entry))))
+  ([store entry ^long idx closed?]
+   (let [^ints prev (:prev store)
+         ^ints next (:next store)]
+     (if (= (:count entry) 2)
+       [(:head entry) (:tail entry)]
+       [(let [p (aget prev idx)] (if (and (= p NIL) closed?) (:tail entry) p))
+        (let [n (aget next idx)] (if (and (= n NIL) closed?) (:head entry) n))]))))
+
+(defn- new-midpoint!
+  "claims a slot for the midpoint of nodes a and b"
+  ^long [store ^long a ^long b random?]
+  (let [^doubles xs (:xs store)
+        ^doubles ys (:ys store)
+        idx (alloc-node store)
+        x (/ (+ (aget xs a) (aget xs b)) 2.0)
+        y (/ (+ (aget ys a) (aget ys b)) 2.0)]
+    (aset ^longs (:ids store) idx (long (path/generateNodeID)))
+    (aset xs idx x)
+    (aset ys idx y)
+    (aset ^doubles (:nxs store) idx x)
+    (aset ^doubles (:nys store) idx y)
+    (aset ^ints (:ages store) idx (int 0))
+    (aset ^ints (:flags store) idx (int (bit-or UNMOVED (if random? RANDOM 0))))
+    (aset ^ints (:params store) idx (aget ^ints (:params store) a))
+    (aset ^objects (:data store) idx nil)
+    idx))
+
+(defn- distance
+  ^double [store ^long a ^long b]
+  (let [^doubles xs (:xs store)
+        ^doubles ys (:ys store)
+        dx (- (aget xs a) (aget xs b))
+        dy (- (aget ys a) (aget ys b))]
+    (Math/sqrt (+ (* dx dx) (* dy dy)))))
+
+(defn- param
+  ^double [store ^long idx ^long k]
+  (aget ^doubles (:values (get (:param-table store) (aget ^ints (:params store) idx))) k))
+
+(defn- fixed?
+  [store ^long idx]
+  (not (zero? (bit-and (aget ^ints (:flags store) idx) FIXED))))
+
+;; ------------ Topology -----------------
+
+(defn splitEdges
+  "splits every edge that is longer than the max distance. needs room for
+   one new node per node"
+  [store entry]
+  (let [^ints next (:next store)]
+    (loop [entry entry
+           idx (long (:head entry))]
+      (if (= idx NIL)
+        entry
+        ;; the midpoint goes in before idx, so the walk carries on from
+        ;; the node that followed idx before the split
+        (let [[p n] (connectedNodes store entry idx)
+              following (aget next idx)]
+          (recur (if (or (= p NIL) (= n NIL)
+                         (< (distance store idx p) (param store idx MAX-DISTANCE)))
+                   entry
+                   (insertBefore! store entry idx (new-midpoint! store idx p false)))
+                 (long following)))))))
+
+(defn pruneNodes
+  "removes nodes that are too close to the node that follows them"
+  [store entry]
+  (let [^ints flags (:flags store)
+        blocked (bit-or END FIXED TO-REMOVE)]
+    (doseq [idx (pathIndices store entry)]
+      (let [[p _] (connectedNodes store entry idx)]
+        (when (and (not= p NIL)
+                   (zero? (bit-and (aget flags (int p)) blocked))
+                   (< (distance store idx p) (param store idx MIN-DISTANCE)))
+          (aset flags (int p) (bit-or (aget flags (int p)) TO-REMOVE)))))
+    (reduce
+     (fn [entry idx]
+       (if (zero? (bit-and (aget flags (int idx)) TO-REMOVE))
+         entry
+         (removeNode! store entry idx)))
+     entry
+     (pathIndices store entry))))
+
+(defn removeFixed
+  "removes all fixed nodes that are not path ends"
+  [store entry]
+  (let [^ints flags (:flags store)]
+    (reduce
+     (fn [entry idx]
+       (let [flag (aget flags (int idx))]
+         (if (and (not (zero? (bit-and flag FIXED)))
+                  (zero? (bit-and flag END)))
+           (removeNode! store entry idx)
+           entry)))
+     entry
+     (pathIndices store entry))))
+
+(defn injectRandomNodeByCurvature
+  "replaces nodes whose neighbors form a shallow angle with the midpoints
+   to those neighbors. needs room for two new nodes per node"
+  [store entry]
+  (let [^doubles xs (:xs store)
+        ^doubles ys (:ys store)
+        indices (pathIndices store entry)
+        closed? (:is-closed (:data (:path entry)))
+        neighbors (mapv #(connectedNodes store entry % closed?) indices)
+        [entry replaced]
+        (reduce
+         (fn [[entry replaced] i]
+           (let [idx (long (get indices i))
+                 [p n] (get neighbors i)]
+             (if (or (= p NIL) (= n NIL) (fixed? store idx))
+               [entry replaced]
+               (let [d (- (aget xs (int n)) (aget xs (int p)))
+                     d (if (= d 0.0) 0.01 d)
+                     angle (Math/round (double (degrees (Math/abs (Math/atan (/ (- (aget ys (int n)) (aget ys (int p))) d))))))]
+                 (if (and (>= angle 20) (< (rng/uniformInt 100) 50))
+                   [entry replaced]
+                   (let [prev-mid (new-midpoint! store idx p true)
+                         next-mid (new-midpoint! store idx n true)
+                         entry (insertBefore! store entry idx prev-mid)]
+                     [(insertAfter! store entry idx next-mid) (conj replaced idx)]))))))
+         [entry []]
+         (range (count indices)))]
+    ;; replaced nodes are only released once every midpoint is placed, as
+    ;; later midpoints are still taken from their positions
+    (reduce #(removeNode! store %1 %2) entry replaced)))
+
+;; ------------ Forces -----------------
+
+(defn- build-grid
+  "buckets live node indices into a primitive chained grid. like the
+   spatial hash grow/applyGrowth builds, it keeps every node's position
+   at the start of the step along with its path and its rank in path
+   order"
+  [store cell-size]
+  (let [^doubles xs (:xs store)
+        ^doubles ys (:ys store)
+        chain (int-array (capacity store) NIL)
+        path-of (int-array (capacity store))
+        rank (int-array (capacity store))
+        heads (java.util.HashMap.)]
+    (doseq [[path-index entry] (map-indexed vector (:paths store))
+            [r idx] (map-indexed vector (pathIndices store entry))]
+      (let [k (+ (* (long (Math/floor (/ (aget xs (int idx)) cell-size))) 1000003)
+                 (long (Math/floor (/ (aget ys (int idx)) cell-size))))
+            head (.get heads k)]
+        (aset chain (int idx) (int (if head head NIL)))
+        (aset path-of (int idx) (int path-index))
+        (aset rank (int idx) (int r))
+        (.put heads k (int idx))))
+    {:cell-size cell-size :heads heads :chain chain
+     :xs (aclone xs) :ys (aclone ys) :path-of path-of :rank rank}))
+
+(defn- repulsion-target
+  "finds the neighbor that grow/applyRepulsion ends up pushing away from:
+   of the last path with nodes in the square crop, the furthest of its
+   radius nearest nodes, ties going to the earlier node in the path"
+  ^long [store grid ^long idx]
+  (let [^doubles gxs (:xs grid)
+        ^doubles gys (:ys grid)
+        ^ints chain (:chain grid)
+        ^ints path-of (:path-of grid)
+        ^ints rank (:rank grid)
+        ^java.util.HashMap heads (:heads grid)
+        cell-size (double (:cell-size grid))
+        radius (param store idx REPULSION-RADIUS)
+        k (max 1 (long (Math/ceil radius)))
+        best-d (double-array k)
+        best-i (long-array k)
+        ;; current path and how many of its nodes are kept
+        state (long-array [-1 0])
+        x (aget ^doubles (:xs store) idx)
+        y (aget ^doubles (:ys store) idx)
+        cx (long (Math/floor (/ x cell-size)))
+        cy (long (Math/floor (/ y cell-size)))
+        reach (max 1 (long (Math/ceil (/ radius cell-size))))]
+    (doseq [i (range (- cx reach) (+ cx reach 1))
+            j (range (- cy reach) (+ cy reach 1))]
+      (loop [other (.get heads (+ (* (long i) 1000003) (long j)))]
+        (when (and other (not= (int other) NIL))
+          (let [o (int other)
+                ox (aget gxs o)
+                oy (aget gys o)
+                path-index (long (aget path-of o))]
+            (when (and (>= path-index (aget state 0))
+                       (>= ox (- x radius)) (<= ox (+ x radius))
+                       (>= oy (- y radius)) (<= oy (+ y radius)))
+              (when (> path-index (aget state 0))
+                (aset state 0 path-index)
+                (aset state 1 0))
+              (let [dx (- ox x)
+                    dy (- oy y)
+                    d (Math/sqrt (+ (* dx dx) (* dy dy)))
+                    r (aget rank o)
+                    n (aget state 1)
+                    last-slot (dec k)]
+                (when (or (< n k)
+                          (< d (aget best-d last-slot))
+                          (and (== d (aget best-d last-slot))
+                               (< r (aget rank (int (aget best-i last-slot))))))
+                  (loop [slot (min n last-slot)]
+                    (if (and (> slot 0)
+                             (or (> (aget best-d (dec slot)) d)
+                                 (and (== (aget best-d (dec slot)) d)
+                                      (> (aget rank (int (aget best-i (dec slot)))) r))))
+                      (do (aset best-d slot (aget best-d (dec slot)))
+                          (aset best-i slot (aget best-i (dec slot)))
+                          (recur (dec slot)))
+                      (do (aset best-d slot d)
+                          (aset best-i slot (long o)))))
+                  (aset state 1 (min k (inc n))))))
+            (recur (aget chain o))))))
+    (if (zero? (aget state 1))
+      NIL
+      (aget best-i (dec (aget state 1))))))
+
+(defn- apply-node-forces!
+  "runs brownian motion, attraction, repulsion, alignment, bounds and
+   movement for a single node, in the order used by grow/applyGrowth"
+  [store entry grid idx width height]
+  (let [idx (long idx)
+        ^doubles xs (:xs store)
+        ^doubles ys (:ys store)
+        ^doubles nxs (:nxs store)
+        ^doubles nys (:nys store)
+        ^ints flags (:flags store)]
+    (when-not (fixed? store idx)
+      (let [half (/ (param store idx BROWNIAN-RANGE) 2)]
+        (aset xs idx (+ (aget xs idx) (double (rng/uniform (- half) half))))
+        (aset ys idx (+ (aget ys idx) (double (rng/uniform (- half) half))))))
+    ;; every node is pushed by repulsion, if only from itself, so a node
+    ;; without a next position gets one this step, starting from here
+    (when-not (zero? (bit-and (aget flags idx) UNMOVED))
+      (aset nxs idx (aget xs idx))
+      (aset nys idx (aget ys idx))
+      (aset flags idx (bit-and (aget flags idx) (bit-not UNMOVED))))
+    (when-not (fixed? store idx)
+      (let [[p n] (connectedNodes store entry idx)
+            force (param store idx ATTRACTION-FORCE)]
+        (doseq [other [n p]
+                :when (and (not= other NIL)
+                           (> (distance store idx other)
+                              (Math/min (param store idx MIN-DISTANCE) (param store other MIN-DISTANCE))))]
+          (aset nxs idx (double (lerp (aget nxs idx) (aget xs (int other)) force)))
+          (aset nys idx (double (lerp (aget nys idx) (aget ys (int other)) force))))))
+    (let [target (repulsion-target store grid idx)]
+      (when (not= target NIL)
+        ;; away from where the neighbor was at the start of the step
+        (let [force (- (param store idx REPULSION-FORCE))]
+          (aset nxs idx (double (lerp (aget xs idx) (aget ^doubles (:xs grid) (int target)) force)))
+          (aset nys idx (double (lerp (aget ys idx) (aget ^doubles (:ys grid) (int target)) force))))))
+    (let [[p n] (connectedNodes store entry idx)
+          alignment (double (or (:alignment (:path entry)) (param store idx ALIGNMENT-FORCE)))]
+      (when (and (not= p NIL) (not= n NIL) (not (fixed? store idx)))
+        (aset nxs idx (double (lerp (aget nxs idx) (/ (+ (aget xs (int p)) (aget xs (int n))) 2) alignment)))
+        (aset nys idx (double (lerp (aget nys idx) (/ (+ (aget ys (int p)) (aget ys (int n))) 2) alignment)))))
+    (let [x (aget xs idx)
+          y (aget ys idx)]
+      (when (or (< x 10) (< y 10) (> x (- width 10)) (> y (- height 10)))
+        (aset flags idx (bit-or (aget flags idx) FIXED))))
+    (when-not (fixed? store idx)
+      (let [velocity (param store idx MAX-VELOCITY)]
+        (aset xs idx (double (Math/round (double (lerp (aget xs idx) (aget nxs idx) velocity)))))
+        (aset ys idx (double (Math/round (double (lerp (aget ys idx) (aget nys idx) velocity)))))
+        (aset ^ints (:ages store) idx (inc (aget ^ints (:ages store) idx)))))))
+
+(defn applyGrowth
+  "advances every path in the store by one growth step, the column
+   equivalent of grow/applyGrowth"
+  [store width height]
+  (let [cell-size (reduce max (:repulsion-radius grow/default-node-growth-data)
+                          (map #(aget ^doubles (:values %) REPULSION-RADIUS) (:param-table store)))
+        grid (build-grid store cell-size)]
+    (reduce
+     (fn [store path-index]
+       ;; each path draws from the stream grow/applyGrowth gives it
+       (rng/withStream
+        (grow/pathRandom (:path (get (:paths store) path-index)) path-index)
+        (let [entry (get (:paths store) path-index)
+              _ (doseq [idx (pathIndices store entry)]
+                  (apply-node-forces! store entry grid idx width height))
+              ;; splitting adds at most one node per node
+              store (reserve store (:count entry))
+              entry (splitEdges store entry)
+              entry (pruneNodes store entry)
+              entry (removeFixed store entry)
+              [store entry] (if (> (rng/uniformInt 100) 50)
+                              ;; and curvature two, counted after the split
+                              (let [store (reserve store (* 2 (:count entry)))]
+                                [store (injectRandomNodeByCurvature store entry)])
+                              [store entry])
+              entry (update-in entry [:path :age] (fnil inc 0))]
+          (assoc-in store [:paths path-index] entry))))
+     store
+     (range (count (:paths store))))))
@@ -1,7 +1,8 @@
 (ns sketch.path
   (:require [quil.core :refer :all]
             [clojure.java.shell :refer [sh]]
-            [sketch.calculations :as calc])
+            [sketch.calculations :as calc]
+            [sketch.rng :as rng])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
@@ -152,7 +153,7 @@
 (defn insert
   "inserts node into a specific index of a path"
   [vec pos item]
-  (apply conj (subvec vec 0 pos) item (subvec vec pos)))
+  (into (conj (subvec vec 0 pos) item) (subvec vec pos)))
 
 (defn generateNodeID
   "generates a new unique node id"
@@ -251,7 +252,7 @@
 (defn splitHorizontalDistance
   "splits a given length into a vec of smaller lengths"
   [length count]
-  (vec (distinct (sort (vec (take count (repeatedly #(rand-int length))))))))
+  (vec (distinct (sort (vec (take count (repeatedly #(rng/uniformInt length))))))))
 
 (defn moveNodeXPositionRight
   "adjust's the given node's X position right by the given distance"
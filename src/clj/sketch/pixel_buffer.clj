@@ -0,0 +1,163 @@
+(ns sketch.pixel_buffer
+  (:require [quil.core :as q]
+            [sketch.raster :as raster])
+  (:import [processing.core PImage]
+           [java.util Arrays]))
+
+;; ------------ Pixel Buffer -----------------
+;; Direct access to a canvas's argb pixel array. The canvas is locked once
+;; with loadPixels, tools read and write the raw int[] at x + y * stride,
+;; and the buffer is committed once with updatePixels over the rectangle
+;; that was written to, instead of going through get-pixel and set-pixel
+;; for every pixel.
+;;
+;; A buffer can also stand for one tile of a larger canvas (see
+;; sketch.tiles). left and top place the tile on the canvas, and every read
+;; and write takes canvas coordinates, so a tool draws the same way into a
+;; tile as into the whole canvas. Raw access to pixels is in the buffer's
+;; own coordinates.
+;;
+;; A buffer keeps the bounds of what was written in a small mutable array,
+;; so it belongs to one thread at a time.
+
+(defrecord PixelBuffer [^PImage target ^ints pixels width height stride left top ^longs dirty])
+
+(defn- emptyBounds
+  []
+  (long-array [Long/MAX_VALUE Long/MAX_VALUE Long/MIN_VALUE Long/MIN_VALUE]))
+
+(defn lock
+  "loads the pixels of a canvas, the current graphics by default, into a
+   buffer. given left and top, the canvas is a tile placed there"
+  ([]
+   (lock (q/current-graphics)))
+  ([target]
+   (lock target 0 0))
+  ([^PImage target left top]
+   (.loadPixels target)
+   (PixelBuffer. target (.-pixels target) (.-pixelWidth target) (.-pixelHeight target)
+                 (.-pixelWidth target) (long left) (long top) (emptyBounds))))
+
+(defn markDirty
+  "widens the written bounds to take in the box x0 y0 (inclusive) to x1
+   y1 (exclusive), in the buffer's own coordinates"
+  [^PixelBuffer buffer x0 y0 x1 y1]
+  (let [^longs dirty (.dirty buffer)]
+    (aset dirty 0 (min (aget dirty 0) (long x0)))
+    (aset dirty 1 (min (aget dirty 1) (long y0)))
+    (aset dirty 2 (max (aget dirty 2) (long x1)))
+    (aset dirty 3 (max (aget dirty 3) (long y1)))))
+
+(defn commit
+  "writes the buffer back to its canvas, only the rectangle that changed"
+  [^PixelBuffer buffer]
+  (let [^longs dirty (.dirty buffer)
+        x0 (max 0 (aget dirty 0))
+        y0 (max 0 (aget dirty 1))
+        x1 (min (long (.width buffer)) (aget dirty 2))
+        y1 (min (long (.height buffer)) (aget dirty 3))]
+    (when (and (< x0 x1) (< y0 y1))
+      (.updatePixels ^PImage (.target buffer) x0 y0 (- x1 x0) (- y1 y0)))))
+
+(defmacro withPixelBuffer
+  "evaluates body with name bound to a locked buffer of the canvas, the
+   current graphics by default, and commits it afterwards"
+  [[name target] & body]
+  `(let [~name (if-let [target# ~target] (lock target#) (lock))
+         result# (do ~@body)]
+     (commit ~name)
+     result#))
+
+;; ------------ Reads and Writes -----------------
+
+(defn inside?
+  "true when canvas pixel x y lies in the buffer"
+  [^PixelBuffer buffer x y]
+  (let [x (- (long x) (long (.left buffer)))
+        y (- (long y) (long (.top buffer)))]
+    (and (>= x 0) (>= y 0) (< x (long (.width buffer))) (< y (long (.height buffer))))))
+
+(defn getPixel
+  "argb colour at x y, 0 off the buffer"
+  [^PixelBuffer buffer x y]
+  (if (inside? buffer x y)
+    (aget ^ints (.pixels buffer) (+ (- (long x) (long (.left buffer)))
+                                    (* (- (long y) (long (.top buffer))) (long (.stride buffer)))))
+    0))
+
+(defn setPixel!
+  "writes an argb colour at x y. ignored off the buffer, like set-pixel"
+  [^PixelBuffer buffer x y argb]
+  (when (inside? buffer x y)
+    (let [x (- (long x) (long (.left buffer)))
+          y (- (long y) (long (.top buffer)))]
+      (aset ^ints (.pixels buffer) (+ x (* y (long (.stride buffer)))) (unchecked-int argb))
+      (markDirty buffer x y (inc x) (inc y)))))
+
+(defn fillPixels!
+  "writes one argb colour at every {:x :y} pixel of a collection"
+  [^PixelBuffer buffer pixel-collection argb]
+  (let [^ints pixels (.pixels buffer)
+        width (long (.width buffer))
+        height (long (.height buffer))
+        stride (long (.stride buffer))
+        left (long (.left buffer))
+        top (long (.top buffer))
+        argb (unchecked-int argb)
+        ;; bounds of what was written, marked dirty once at the end
+        ^longs bounds (emptyBounds)]
+    (doseq [p pixel-collection]
+      (let [x (- (long (:x p)) left)
+            y (- (long (:y p)) top)]
+        (when (and (>= x 0) (>= y 0) (< x width) (< y height))
+          (aset pixels (+ x (* y stride)) argb)
+          (aset bounds 0 (min (aget bounds 0) x))
+          (aset bounds 1 (min (aget bounds 1) y))
+          (aset bounds 2 (max (aget bounds 2) (inc x)))
+          (aset bounds 3 (max (aget bounds 3) (inc y))))))
+    (markDirty buffer (aget bounds 0) (aget bounds 1) (aget bounds 2) (aget bounds 3))))
+
+(defn- localSpans
+  "canvas spans moved into the buffer's coordinates and clipped to it"
+  [^PixelBuffer buffer spans]
+  (let [left (long (.left buffer))
+        top (long (.top buffer))
+        width (long (.width buffer))
+        height (long (.height buffer))]
+    (for [[y x0 x1] spans
+          :let [y (- (long y) top)
+                x0 (max 0 (- (long x0) left))
+                x1 (min width (- (long x1) left))]
+          :when (and (>= y 0) (< y height) (< x0 x1))]
+      [y x0 x1])))
+
+(defn spanAverage
+  "average [r g b] of the pixels under canvas spans, see sketch.raster"
+  [^PixelBuffer buffer spans]
+  (raster/spanAverage (.pixels buffer) (.stride buffer) (localSpans buffer spans)))
+
+(defn fillSpans!
+  "writes one argb colour into every pixel under canvas spans, see
+   sketch.raster"
+  [^PixelBuffer buffer spans argb]
+  (let [spans (localSpans buffer spans)]
+    (raster/fillSpans (.pixels buffer) (.stride buffer) spans argb)
+    (doseq [[y x0 x1] spans]
+      (markDirty buffer x0 y x1 (inc (long y))))))
+
+(defn fillRect!
+  "writes one argb colour into the canvas box x0 y0 (inclusive) to x1 y1
+   (exclusive), clipped to the buffer"
+  [^PixelBuffer buffer x0 y0 x1 y1 argb]
+  (let [x0 (max 0 (- (long x0) (long (.left buffer))))
+        y0 (max 0 (- (long y0) (long (.top buffer))))
+        x1 (min (long (.width buffer)) (- (long x1) (long (.left buffer))))
+        y1 (min (long (.height buffer)) (- (long y1) (long (.top buffer))))
+        stride (long (.stride buffer))]
+    (when (and (< x0 x1) (< y0 y1))
+      (loop [y y0]
+        (when (< y y1)
+          (Arrays/fill ^ints (.pixels buffer) (int (+ x0 (* y stride))) (int (+ x1 (* y stride)))
+                       (unchecked-int argb))
+          (recur (inc y))))
+      (markDirty buffer x0 y0 x1 y1))))
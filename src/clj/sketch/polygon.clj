@@ -0,0 +1,331 @@
+(ns sketch.polygon
+  (:import [java.util TreeMap Comparator HashMap HashSet ArrayList]))
+
+;; ------------ Polygon Triangulation -----------------
+;; Triangulates simple polygons such as lasso selections in O(n log n).
+;; A sweep from top to bottom adds the diagonals that cut the polygon into
+;; y-monotone pieces (de Berg et al., Computational Geometry, ch. 3), and
+;; each piece is then triangulated in one pass down its two chains.
+;;
+;; Internally y points up, so the polygon is read as (x, -y) and wound
+;; counter-clockwise. Repeated and collinear points are dropped first.
+
+(defn- orient
+  "twice the signed area of triangle a b c, positive when it turns left"
+  [^doubles xs ^doubles ys a b c]
+  (let [a (int a) b (int b) c (int c)]
+    (- (* (- (aget xs b) (aget xs a)) (- (aget ys c) (aget ys a)))
+       (* (- (aget ys b) (aget ys a)) (- (aget xs c) (aget xs a))))))
+
+(defn- cleanPoints
+  "drops repeated points and points on a straight line between their
+   neighbors"
+  [points]
+  (let [point-x #(double (:x %))
+        point-y #(double (:y %))
+        flat? (fn [a b c]
+                (zero? (- (* (- (point-x b) (point-x a)) (- (point-y c) (point-y a)))
+                          (* (- (point-y b) (point-y a)) (- (point-x c) (point-x a))))))
+        push (fn [stack p]
+               (loop [stack stack]
+                 (cond
+                   (and (= 1 (count stack)) (= (point-x p) (point-x (peek stack))) (= (point-y p) (point-y (peek stack)))) stack
+                   (and (>= (count stack) 2) (flat? (stack (- (count stack) 2)) (peek stack) p)) (recur (pop stack))
+                   :else (conj stack p))))]
+    ;; then the points where the polygon closes
+    (loop [stack (reduce push [] points)]
+      (let [n (count stack)]
+        (cond
+          (< n 3) stack
+          (flat? (stack (- n 2)) (stack (- n 1)) (stack 0)) (recur (pop stack))
+          (flat? (stack (- n 1)) (stack 0) (stack 1)) (recur (subvec stack 1))
+          :else stack)))))
+
+;; ------------ Sweep -----------------
+
+(defn- above?
+  "sweep order: higher points first, then points further left"
+  [^doubles xs ^doubles ys p q]
+  (let [p (int p) q (int q)]
+    (or (> (aget ys p) (aget ys q))
+        (and (== (aget ys p) (aget ys q)) (< (aget xs p) (aget xs q))))))
+
+(defn- sweepOrder
+  "vertex indices in the order the sweep line meets them"
+  [xs ys]
+  (sort (fn [p q] (cond (above? xs ys p q) -1 (above? xs ys q p) 1 :else 0))
+        (range (alength ^doubles xs))))
+
+(defn- crossingX
+  "x where the edge a b crosses the sweep line at y. a horizontal edge is
+   taken at its right end, the last point of it the sweep meets"
+  [^doubles xs ^doubles ys y a b]
+  (let [a (int a) b (int b) y (double y)
+        ay (aget ys a) by (aget ys b)]
+    (if (== ay by)
+      (max (aget xs a) (aget xs b))
+      (let [t (max 0.0 (min 1.0 (/ (- y ay) (- by ay))))]
+        (+ (aget xs a) (* t (- (aget xs b) (aget xs a))))))))
+
+;; ------------ Self Intersection -----------------
+
+(defn- segmentsCross?
+  "true when segments a b and c d touch or cross"
+  [^doubles xs ^doubles ys a b c d]
+  (let [d1 (double (orient xs ys a b c))
+        d2 (double (orient xs ys a b d))
+        d3 (double (orient xs ys c d a))
+        d4 (double (orient xs ys c d b))
+        within? (fn [p q r]
+                  ;; r collinear with p q, true when it lies on the segment
+                  (and (<= (min (aget xs p) (aget xs q)) (aget xs r) (max (aget xs p) (aget xs q)))
+                       (<= (min (aget ys p) (aget ys q)) (aget ys r) (max (aget ys p) (aget ys q)))))]
+    (or (and (neg? (* d1 d2)) (neg? (* d3 d4)))
+        (and (zero? d1) (within? a b c))
+        (and (zero? d2) (within? a b d))
+        (and (zero? d3) (within? c d a))
+        (and (zero? d4) (within? c d b)))))
+
+(defn- crossesItself?
+  "true when two edges of the polygon that are not neighbors touch. the
+   sweep keeps the edges it crosses in order and only compares edges as
+   they become neighbors in that order (Shamos and Hoey), so the first
+   crossing is found before the order could go wrong.
+
+   two edges are ordered by the side of one edge the upper end of the
+   other lies on, taking the edge the sweep met last, or its lower end
+   when the upper end lies on the first. that is their order just below
+   where the later one starts, and it does not change as the sweep moves
+   on, so edges can be removed at any point"
+  [^doubles xs ^doubles ys]
+  (let [n (alength xs)
+        upper #(let [b (mod (inc %) n)] (if (above? xs ys % b) % b))
+        lower #(let [b (mod (inc %) n)] (if (above? xs ys % b) b %))
+        rank (let [rank (long-array n)]
+               (doseq [[i v] (map-indexed vector (sweepOrder xs ys))]
+                 (aset rank (int v) (long i)))
+               rank)
+        ;; -1 when e lies left of f, 1 when right, 0 when on its line
+        side (fn [e f]
+               (let [s (Math/signum (double (orient xs ys (upper f) (lower f) (upper e))))]
+                 (if (zero? s)
+                   (Math/signum (double (orient xs ys (upper f) (lower f) (lower e))))
+                   s)))
+        status (TreeMap. (reify Comparator
+                           (compare [_ e f]
+                             (let [s (if (>= (aget rank (int (upper e))) (aget rank (int (upper f))))
+                                       (side e f)
+                                       (- (double (side f e))))]
+                               (if (zero? s)
+                                 (compare e f)
+                                 (int s))))))
+        cross? (fn [e f]
+                 (and e f
+                      (not= f (mod (inc e) n))
+                      (not= e (mod (inc f) n))
+                      (segmentsCross? xs ys e (mod (inc e) n) f (mod (inc f) n))))]
+    (boolean
+     (or
+      ;; two vertices on the same point touch without any edges meeting
+      ;; as neighbors, as the edges of one leave before the other's arrive
+      (not= n (count (set (map #(vector (+ 0.0 (aget xs %)) (+ 0.0 (aget ys %))) (range n)))))
+      (some (fn [v]
+              (let [edges [(mod (dec v) n) v]]
+                ;; edges ending at v leave first, bringing the edges either
+                ;; side of them together, then the edges starting at v are
+                ;; compared with their neighbors on both sides
+                (or (some (fn [e]
+                            (when (= v (lower e))
+                              (let [below (.lowerKey status e)
+                                    above (.higherKey status e)]
+                                (.remove status e)
+                                (cross? below above))))
+                          edges)
+                    (some (fn [e]
+                            (when (= v (upper e))
+                              (.put status e true)
+                              (or (cross? e (.lowerKey status e))
+                                  (cross? e (.higherKey status e)))))
+                          edges))))
+            (sweepOrder xs ys))))))
+
+;; ------------ Monotone Decomposition -----------------
+
+(defn- vertexType
+  [xs ys n i]
+  (let [prev (mod (dec i) n)
+        next (mod (inc i) n)
+        prev-above? (above? xs ys prev i)
+        next-above? (above? xs ys next i)
+        convex? (pos? (orient xs ys prev i next))]
+    (cond
+      (and (not prev-above?) (not next-above?)) (if convex? :start :split)
+      (and prev-above? next-above?) (if convex? :end :merge)
+      :else :regular)))
+
+(defn- monotoneDiagonals
+  "diagonals splitting the polygon into y-monotone pieces, nil when the
+   sweep finds the polygon is not simple. the sweep status holds the edges
+   with the polygon to their right, ordered by where they cross the sweep
+   line, each with its helper vertex"
+  [^doubles xs ^doubles ys]
+  (let [n (alength xs)
+        sweep (double-array 2)
+        ;; x where edge e crosses the sweep line, edge -1 is the sweep
+        ;; point itself
+        edge-x (fn [e]
+                 (if (neg? e)
+                   (aget sweep 0)
+                   (crossingX xs ys (aget sweep 1) e (mod (inc e) n))))
+        status (TreeMap. (reify Comparator
+                           (compare [_ e f]
+                             (let [xe (double (edge-x e))
+                                   xf (double (edge-x f))]
+                               (cond
+                                 (< xe xf) -1
+                                 (> xe xf) 1
+                                 :else (compare e f))))))
+        helper (long-array n)
+        types (mapv #(vertexType xs ys n %) (range n))
+        merge? #(= :merge (types %))
+        diagonals (ArrayList.)
+        ;; a helper can be the next vertex along the polygon, which needs
+        ;; no diagonal
+        diagonal! (fn [a b]
+                    (when-not (or (= b (mod (inc a) n)) (= a (mod (inc b) n)))
+                      (.add diagonals [a b])))
+        insert! (fn [e v] (aset helper e (long v)) (.put status e true))
+        fixHelper! (fn [e v] (when (merge? (aget helper e)) (diagonal! v (aget helper e))))
+        leftOf (fn [] (.lowerKey status -1))]
+    ;; a vertex with no edge to its left, or an edge that is not in the
+    ;; status, only happens when the polygon is not simple
+    (when (every?
+           (fn [v]
+             (let [prev-edge (mod (dec v) n)]
+               (aset sweep 0 (aget xs v))
+               (aset sweep 1 (aget ys v))
+               (case (types v)
+                 :start (do (insert! v v) true)
+                 :end (when (.containsKey status prev-edge)
+                        (fixHelper! prev-edge v)
+                        (.remove status prev-edge)
+                        true)
+                 :split (when-let [e (leftOf)]
+                          (diagonal! v (aget helper e))
+                          (aset helper e (long v))
+                          (insert! v v)
+                          true)
+                 :merge (when (.containsKey status prev-edge)
+                          (fixHelper! prev-edge v)
+                          (.remove status prev-edge)
+                          (when-let [e (leftOf)]
+                            (fixHelper! e v)
+                            (aset helper e (long v))
+                            true))
+                 :regular (if (above? xs ys prev-edge v)
+                            ;; the polygon lies to the right of v
+                            (when (.containsKey status prev-edge)
+                              (fixHelper! prev-edge v)
+                              (.remove status prev-edge)
+                              (insert! v v)
+                              true)
+                            (when-let [e (leftOf)]
+                              (fixHelper! e v)
+                              (aset helper e (long v))
+                              true)))))
+           (sweepOrder xs ys))
+      (vec diagonals))))
+
+(defn- pieces
+  "the faces the diagonals cut the polygon into, each as a counter-clockwise
+   cycle of vertices. leaving a vertex, a face turns to the neighbor just
+   clockwise of the one it arrived from"
+  [^doubles xs ^doubles ys diagonals]
+  (let [n (alength xs)
+        neighbors (reduce (fn [m [a b]] (-> m (update-in [a] conj b) (update-in [b] conj a)))
+                          (mapv (fn [i] [(mod (dec i) n) (mod (inc i) n)]) (range n))
+                          diagonals)
+        neighbors (mapv (fn [v ws]
+                          (vec (sort-by #(Math/atan2 (- (aget ys %) (aget ys v)) (- (aget xs %) (aget xs v))) ws)))
+                        (range n) neighbors)
+        turn (fn [u v]
+               (let [ws (neighbors v)
+                     i (.indexOf ^java.util.List ws u)]
+                 (ws (mod (dec i) (count ws)))))
+        visited (HashSet.)
+        starts (concat (map (fn [i] [i (mod (inc i) n)]) (range n))
+                       (mapcat (fn [[a b]] [[a b] [b a]]) diagonals))]
+    (reduce
+     (fn [faces [u v]]
+       (if (.contains visited [u v])
+         faces
+         (conj faces
+               (loop [u u v v face []]
+                 (if (.contains visited [u v])
+                   face
+                   (do (.add visited [u v])
+                       (recur v (turn u v) (conj face u))))))))
+     []
+     starts)))
+
+;; ------------ Monotone Triangulation -----------------
+
+(defn- triangulateMonotone
+  "triangles of a y-monotone piece as vertex triples, walking down its two
+   chains with a stack of vertices still waiting for triangles"
+  [xs ys face]
+  (if (= 3 (count face))
+    [face]
+    (let [k (count face)
+          order (vec (sort (fn [p q] (cond (above? xs ys p q) -1 (above? xs ys q p) 1 :else 0)) face))
+          top (.indexOf ^java.util.List face (first order))
+          bottom (.indexOf ^java.util.List face (peek order))
+          ;; walking forward from the top runs down the left chain
+          left? (set (map #(face (mod (+ top %) k)) (range 1 (inc (mod (- bottom top) k)))))
+          convex? (fn [v popped waiting]
+                    (if (left? v)
+                      (pos? (orient xs ys waiting popped v))
+                      (pos? (orient xs ys v popped waiting))))]
+      (loop [j 2
+             stack [(order 0) (order 1)]
+             triangles []]
+        (let [v (order j)]
+          (if (= j (dec k))
+            (into triangles (map (fn [[a b]] [v a b]) (partition 2 1 stack)))
+            (if (not= (boolean (left? v)) (boolean (left? (peek stack))))
+              (recur (inc j)
+                     [(peek stack) v]
+                     (into triangles (map (fn [[a b]] [v a b]) (partition 2 1 stack))))
+              (let [[stack popped triangles]
+                    (loop [popped (peek stack) stack (pop stack) triangles triangles]
+                      (if (and (seq stack) (convex? v popped (peek stack)))
+                        (recur (peek stack) (pop stack) (conj triangles [v (peek stack) popped]))
+                        [stack popped triangles]))]
+                (recur (inc j) (conj stack popped v) triangles)))))))))
+
+(defn triangulate
+  "triangles covering a simple polygon given as {:x :y} points, as
+   [a b c] point triples. nil when the polygon crosses itself or has no
+   area"
+  [points]
+  (let [points (cleanPoints points)
+        n (count points)
+        xs (double-array (map #(double (:x %)) points))
+        ys (double-array (map #(- (double (:y %))) points))
+        area (reduce + (map #(orient xs ys 0 % (inc %)) (range 1 (dec n))))]
+    (when (and (>= n 3) (not (zero? area)) (not (crossesItself? xs ys)))
+      (let [[points xs ys] (if (neg? area)
+                             [(vec (rseq points)) (double-array (reverse xs)) (double-array (reverse ys))]
+                             [points xs ys])]
+        (when-let [diagonals (monotoneDiagonals xs ys)]
+          (vec (for [face (pieces xs ys diagonals)
+                     triangle (triangulateMonotone xs ys face)]
+                 (mapv points triangle))))))))
+
+(defn selfIntersecting?
+  "true when a polygon given as {:x :y} points crosses or touches itself"
+  [points]
+  (let [points (cleanPoints points)]
+    (and (>= (count points) 3)
+         (crossesItself? (double-array (map #(double (:x %)) points))
+                         (double-array (map #(- (double (:y %))) points))))))
@@ -0,0 +1,116 @@
+(ns sketch.raster
+  (:require [quil.core :as q]))
+
+;; ------------ Scanline Rasterizer -----------------
+;; Turns triangles into horizontal spans [y x0 x1] covering the pixels
+;; x0 <= x < x1 of row y. A pixel belongs to a triangle when its centre
+;; (x + 0.5, y + 0.5) lies inside. Centres that land exactly on an edge
+;; follow the top-left rule: they belong to the triangle when the edge
+;; is a left edge or a horizontal top edge. An edge shared by two
+;; triangles is a left edge of one and a right edge of the other, so
+;; neighboring triangles never share a pixel or leave one out.
+
+(defn- crossing
+  "x where the line through the edge crosses row centre yc. the end points
+   are always taken in the same order so two triangles sharing the edge
+   compute exactly the same crossing"
+  [ax ay bx by yc]
+  (let [ax (double ax) ay (double ay) bx (double bx) by (double by)
+        yc (double yc)]
+    (if (or (< ay by) (and (== ay by) (< ax bx)))
+      (+ ax (/ (* (- bx ax) (- yc ay)) (- by ay)))
+      (+ bx (/ (* (- ax bx) (- yc by)) (- ay by))))))
+
+(defn- clipEdge
+  "narrows the [lo hi) pixel range of row yc to the inside of edge a b of a
+   triangle wound so that its inside is on the positive side of every edge"
+  [[lo hi] [ax ay] [bx by] yc]
+  (let [ax (double ax) ay (double ay) bx (double bx) by (double by)
+        yc (double yc)
+        ;; E(x) = (bx - ax)(yc - ay) - (by - ay)(x - ax)
+        slope (- ay by)]
+    (cond
+      ;; horizontal edge: the whole row is on one side
+      (zero? slope) (let [e (* (- bx ax) (- yc ay))]
+                      (if (or (pos? e) (and (zero? e) (pos? (- bx ax))))
+                        [lo hi]
+                        [lo lo]))
+      ;; inside lies to the right, a left edge: centres on it are kept
+      (pos? slope) (let [t (- (crossing ax ay bx by yc) 0.5)]
+                     [(max lo (long (Math/ceil t))) hi])
+      ;; inside lies to the left, a right edge: centres on it are dropped
+      :else (let [t (- (crossing ax ay bx by yc) 0.5)]
+              [lo (min hi (long (Math/ceil t)))]))))
+
+(defn triangleSpans
+  "spans covering a triangle given as three [x y] vertices, clipped to a
+   width by height raster. defaults to the size of the current sketch"
+  ([vertices]
+   (triangleSpans vertices (q/width) (q/height)))
+  ([vertices width height]
+   (let [[a b c] vertices
+         [ax ay] a [bx by] b [cx cy] c
+         area (- (* (- bx ax) (- cy ay)) (* (- by ay) (- cx ax)))
+         ;; wind the triangle so the inside is on the positive side
+         [b c] (if (neg? area) [c b] [b c])]
+     (if (zero? area)
+       []
+       (let [y0 (max 0 (long (Math/ceil (- (min ay by cy) 0.5))))
+             y1 (min (dec height) (long (Math/floor (- (max ay by cy) 0.5))))]
+         (loop [y y0 spans (transient [])]
+           (if (> y y1)
+             (persistent! spans)
+             (let [yc (+ y 0.5)
+                   [lo hi] (-> [0 width]
+                               (clipEdge a b yc)
+                               (clipEdge b c yc)
+                               (clipEdge c a yc))]
+               (recur (inc y) (if (< lo hi) (conj! spans [y lo hi]) spans))))))))))
+
+(defn spanArea
+  "number of pixels covered by the spans"
+  [spans]
+  (reduce (fn [n [_ x0 x1]] (+ n (- x1 x0))) 0 spans))
+
+(defn spanPixels
+  "lazily expands spans into {:x :y} pixel maps"
+  [spans]
+  (for [[y x0 x1] spans
+        x (range x0 x1)]
+    {:x x :y y}))
+
+;; ------------ Span Pixel Access -----------------
+;; Reads and writes spans straight from a sketch's pixel array, so a
+;; caller can load the pixels once, work through every span and update
+;; the pixels once.
+
+(defn spanAverage
+  "average [r g b] of the argb pixels under the spans, accumulated in a
+   single pass. [0 0 0] when the spans are empty"
+  [^ints pixels width spans]
+  (let [width (long width)
+        sums (long-array 4)]
+    (doseq [[y x0 x1] spans]
+      (let [row (* (long y) width)]
+        (loop [i (+ row (long x0))
+               end (+ row (long x1))
+               r (aget sums 0) g (aget sums 1) b (aget sums 2)]
+          (if (< i end)
+            (let [c (aget pixels i)]
+              (recur (inc i) end
+                     (+ r (bit-and (bit-shift-right c 16) 0xFF))
+                     (+ g (bit-and (bit-shift-right c 8) 0xFF))
+                     (+ b (bit-and c 0xFF))))
+            (do (aset sums 0 r) (aset sums 1 g) (aset sums 2 b)
+                (aset sums 3 (+ (aget sums 3) (- end (+ row (long x0))))))))))
+    (let [n (max 1 (aget sums 3))]
+      [(quot (aget sums 0) n) (quot (aget sums 1) n) (quot (aget sums 2) n)])))
+
+(defn fillSpans
+  "writes one argb colour into every pixel under the spans"
+  [^ints pixels width spans argb]
+  (let [width (long width)
+        argb (unchecked-int argb)]
+    (doseq [[y x0 x1] spans]
+      (let [row (* (long y) width)]
+        (java.util.Arrays/fill pixels (int (+ row (long x0))) (int (+ row (long x1))) argb)))))
@@ -0,0 +1,114 @@
+(ns sketch.rng
+  (:require [quil.core :as q])
+  (:import [java.util SplittableRandom]))
+
+;; ------------ Random Streams -----------------
+;; Seedable random numbers for every tool. A master seed is bound with
+;; withSeed, and each path, triangle or cart takes its own stream derived
+;; from that seed and a key (streamFor) or split off its parent's stream
+;; (split), so a seeded run can be rendered again at another resolution
+;; from its seed alone.
+;;
+;; A stream must not be drawn from by two threads at once. future, pmap and
+;; async/thread carry the caller's *rng* along, so work handed to another
+;; thread takes its own stream with streamFor or splitOrNew before it
+;; starts, as the forked tasks in sketch.triangle do. The run then comes
+;; out the same no matter how that work is scheduled.
+;;
+;; When no seed is bound every draw falls back to quil's random and
+;; clojure's rand-int, so unseeded sketches behave as they always have.
+
+(def ^:dynamic *seed*
+  "master seed of the current run, nil when unseeded"
+  nil)
+
+(def ^:dynamic *rng*
+  "stream draws are taken from, nil to use the global random"
+  nil)
+
+(defn mix
+  "scrambles a seed with a key into a new well distributed seed (the
+   splitmix64 finalizer)"
+  ^long [^long seed ^long k]
+  (let [z (unchecked-add seed (unchecked-multiply k -7046029254386353131))
+        z (unchecked-multiply (bit-xor z (unsigned-bit-shift-right z 30)) -4658895280553007687)
+        z (unchecked-multiply (bit-xor z (unsigned-bit-shift-right z 27)) -7723592293110705685)]
+    (bit-xor z (unsigned-bit-shift-right z 31))))
+
+(defn- keyToLong
+  [k]
+  (if (integer? k) (long k) (long (hash k))))
+
+(defn stream
+  "a stream that only depends on the seed and the given keys"
+  [seed & ks]
+  (SplittableRandom. (reduce #(mix %1 (keyToLong %2)) (long seed) ks)))
+
+(defn streamFor
+  "a stream for the given keys derived from the master seed, or nil when
+   the run is unseeded"
+  [& ks]
+  (when *seed*
+    (apply stream *seed* ks)))
+
+(defn split
+  "a new independent stream split off the given stream, or off the
+   current one. nil when there is no stream to split"
+  ([]
+   (split *rng*))
+  ([^SplittableRandom rng]
+   (when rng
+     (.split rng))))
+
+(defn splitOrNew
+  "split, or a fresh unseeded stream when there is no current stream. for
+   work handed to other threads, which cannot fall back to quil's random"
+  []
+  (or (split) (SplittableRandom.)))
+
+(defmacro withStream
+  "evaluates body drawing from the given stream. a nil stream leaves the
+   current one in place"
+  [rng & body]
+  `(if-let [rng# ~rng]
+     (binding [*rng* rng#] ~@body)
+     (do ~@body)))
+
+(defmacro withSeed
+  "evaluates body as a seeded run"
+  [seed & body]
+  `(let [seed# (long ~seed)]
+     (binding [*seed* seed#
+               *rng* (stream seed#)]
+       ~@body)))
+
+(defn uniformWith
+  "random double between min and max from the given stream, falling back
+   to the current stream and then to quil's random"
+  [^SplittableRandom rng min max]
+  (if-let [^SplittableRandom rng (or rng *rng*)]
+    (+ min (* (- max min) (.nextDouble rng)))
+    (q/random min max)))
+
+(defn uniformIntWith
+  "random int below n from the given stream, falling back to the current
+   stream and then to rand-int. 0 from a stream when n is below 1"
+  [^SplittableRandom rng n]
+  (if-let [^SplittableRandom rng (or rng *rng*)]
+    (let [n (int n)]
+      (if (pos? n)
+        (.nextInt rng n)
+        0))
+    (rand-int n)))
+
+(defn uniform
+  "random double below max, or between min and max, from the current stream"
+  ([max]
+   (uniformWith nil 0 max))
+  ([min max]
+   (uniformWith nil min max)))
+
+(defn uniformInt
+  "random int below n from the current stream"
+  [n]
+  (uniformIntWith nil n))
@@ -2,7 +2,8 @@
   (:require [quil.core :refer :all]
             [sketch.path :as path]
             [clojure.java.shell :refer [sh]]
-            [sketch.calculations :as calc])
+            [sketch.calculations :as calc]
+            [sketch.pixel_buffer :as pb])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
@@ -73,25 +74,19 @@
 (defn getPixelColors
   "retrieves a collection of colors for a given group of pixels"
   [pixel-collection]
-  (map
-   (fn [pix]
-     (let [x (:x pix)
-           y (:y pix)]
-       {:r (red (get-pixel x y)) :g (green (get-pixel x y)) :b (blue (get-pixel x y))}))
-   (for [pix pixel-collection] pix)))
+  (let [buffer (pb/lock)]
+    (mapv
+     (fn [pix]
+       (let [c (pb/getPixel buffer (:x pix) (:y pix))]
+         {:r (red c) :g (green c) :b (blue c)}))
+     pixel-collection)))
 
 (defn calculateAverageColor
   "calculates the average color of a given collection of colors"
   [pixels key]
   (int
    (/
-    (reduce +
-            (map
-             (fn [pixel]
-               (let [color (first (getPixelColors (vector pixel)))
-                     rgb (key color)]
-                 (conj rgb)))
-             (for [pixel pixels] pixel)))
+    (reduce + (map key (getPixelColors pixels)))
     (let [num (count pixels)]
       (if (> num 0)
         num
@@ -100,11 +95,8 @@
 (defn fillShape 
   "fills the given shape with the given color"
   [pixels r g b]
-  (doseq [pixel pixels]
-    (let [rgb (first (getPixelColors (vector pixel)))
-          x (:x pixel)
-          y (:y pixel)]
-      (set-pixel x y (color r g b)))))
+  (pb/withPixelBuffer [buffer]
+    (pb/fillPixels! buffer pixels (color r g b))))
 
 
 
@@ -0,0 +1,146 @@
+(ns sketch.spatial)
+
+;; ------------ Spatial Hash -----------------
+;; A uniform grid that buckets nodes by position so neighbor queries
+;; only need to look at the cells surrounding a given point rather than
+;; every node of every path.
+
+;; Each cell holds [path-index node-index node] entries, so a query can
+;; hand back neighbors path by path and in path order, the way
+;; grow/radiusNN finds them.
+
+(defrecord SpatialHash [cell-size cells])
+
+(defn cellKey
+  "returns the grid cell that contains the given coordinates"
+  [cell-size x y]
+  [(long (Math/floor (/ x cell-size)))
+   (long (Math/floor (/ y cell-size)))])
+
+(defn buildSpatialHash
+  "buckets every node of every given path into cells of the given size"
+  [paths cell-size]
+  (SpatialHash.
+   cell-size
+   (persistent!
+    (reduce
+     (fn [cells [path-index path]]
+       (reduce
+        (fn [cells [node-index node]]
+          (let [position (:position node)
+                k (cellKey cell-size (:x position) (:y position))]
+            (assoc! cells k (conj (get cells k []) [path-index node-index node]))))
+        cells
+        (map-indexed vector (:nodes path))))
+     (transient {})
+     (map-indexed vector paths)))))
+
+(defn hashCellSize
+  "finds the largest repulsion radius in use so that a radius query never
+   needs to reach further than the 3x3 block of cells around a node"
+  [paths default-radius]
+  (reduce
+   (fn [radius path]
+     (max radius
+          (or (:repulsion-radius (:settings path)) 0)
+          (reduce max 0 (keep #(:repulsion-radius (:settings %)) (:nodes path)))))
+   default-radius
+   paths))
+
+(defn cellsAround
+  "returns the entries of all cells that overlap a square of the given
+   radius"
+  [spatial-hash x y radius]
+  (let [cell-size (:cell-size spatial-hash)
+        cells (:cells spatial-hash)
+        [cx cy] (cellKey cell-size x y)
+        reach (max 1 (long (Math/ceil (/ radius cell-size))))]
+    (for [i (range (- cx reach) (+ cx reach 1))
+          j (range (- cy reach) (+ cy reach 1))
+          entry (get cells [i j])]
+      entry)))
+
+(defn radiusNN
+  "retrieves the same nodes as grow/radiusNN: from each path in turn, up
+   to radius nearest nodes inside the square crop around the given node"
+  [spatial-hash node radius]
+  (let [x (:x (:position node))
+        y (:y (:position node))]
+    (->> (cellsAround spatial-hash x y radius)
+         (keep
+          (fn [[path-index node-index neighbor]]
+            (let [nx (:x (:position neighbor))
+                  ny (:y (:position neighbor))]
+              (when (and (>= nx (- x radius))
+                         (>= ny (- y radius))
+                         (<= nx (+ x radius))
+                         (<= ny (+ y radius)))
+                (let [dx (- nx x)
+                      dy (- ny y)]
+                  [path-index node-index (assoc neighbor :distance (Math/sqrt (+ (* dx dx) (* dy dy))))])))))
+         ;; ties keep path order, like the stable sort of each path
+         (sort-by (fn [[path-index node-index neighbor]] [path-index (:distance neighbor) node-index]))
+         (partition-by first)
+         (mapcat #(take radius (map peek %))))))
+
+(defn furthestOfNearest
+  "returns the same node as (last (radiusNN spatial-hash node radius)),
+   the furthest of the nearest nodes of the last path with any in reach,
+   without sorting or allocating the whole neighborhood"
+  [spatial-hash node radius]
+  (let [x (double (:x (:position node)))
+        y (double (:y (:position node)))
+        radius (double radius)
+        k (long (Math/ceil radius))
+        cell-size (:cell-size spatial-hash)
+        cells (:cells spatial-hash)
+        [cx cy] (cellKey cell-size x y)
+        cx (long cx)
+        cy (long cy)
+        reach (max 1 (long (Math/ceil (/ radius (double cell-size)))))
+        ;; the k nearest of the current path, ordered by distance then
+        ;; node index
+        best-d (double-array (max k 1))
+        best-i (long-array (max k 1))
+        best (object-array (max k 1))
+        ;; current path and how many of its nodes are kept
+        state (long-array [-1 0])]
+    (when (pos? k)
+      (doseq [i (range (- cx reach) (+ cx reach 1))
+              j (range (- cy reach) (+ cy reach 1))
+              [path-index node-index neighbor] (get cells [i j])]
+        (let [path-index (long path-index)
+              node-index (long node-index)
+              nx (double (:x (:position neighbor)))
+              ny (double (:y (:position neighbor)))]
+          (when (and (>= path-index (aget state 0))
+                     (>= nx (- x radius))
+                     (>= ny (- y radius))
+                     (<= nx (+ x radius))
+                     (<= ny (+ y radius)))
+            (when (> path-index (aget state 0))
+              (aset state 0 path-index)
+              (aset state 1 0))
+            (let [dx (- nx x)
+                  dy (- ny y)
+                  d (Math/sqrt (+ (* dx dx) (* dy dy)))
+                  found (aget state 1)
+                  last-slot (dec k)]
+              (when (or (< found k)
+                        (< d (aget best-d last-slot))
+                        (and (== d (aget best-d last-slot)) (< node-index (aget best-i last-slot))))
+                (loop [slot (min found last-slot)]
+                  (if (and (> slot 0)
+                           (or (< d (aget best-d (dec slot)))
+                               (and (== d (aget best-d (dec slot))) (< node-index (aget best-i (dec slot))))))
+                    (do (aset best-d slot (aget best-d (dec slot)))
+                        (aset best-i slot (aget best-i (dec slot)))
+                        (aset best slot (aget best (dec slot)))
+                        (recur (dec slot)))
+                    (do (aset best-d slot d)
+                        (aset best-i slot node-index)
+                        (aset best slot neighbor)
+                        (aset state 1 (min k (inc found)))))))))))
+      (let [found (aget state 1)]
+        (when (pos? found)
+          (aget best (dec found)))))))
@@ -0,0 +1,81 @@
+(ns sketch.thumbnail)
+
+;; ------------ Thumbnails -----------------
+;; Shrinks an argb pixel array by area averaging: every thumbnail pixel is
+;; the average of the source area it covers, with the source pixels on its
+;; edges weighted by how much of them falls inside. The source is read a
+;; row at a time and only one row of the thumbnail is summed at once, so
+;; even a print sized source needs little memory besides itself.
+
+(defn- weights
+  "for every thumbnail column (or row) of size, the source columns it
+   covers as [first last] and the share of the first and last that falls
+   inside it, when source columns are shrunk into size"
+  [source size]
+  (let [scale (/ (double source) (double size))]
+    (vec (for [i (range size)]
+           (let [start (* i scale)
+                 end (* (inc i) scale)
+                 first-index (long (Math/floor start))
+                 last-index (min (dec (long source)) (long (Math/ceil (- end 1.0))))]
+             [first-index last-index
+              (- (min end (inc first-index)) start)
+              (- end (max start (double last-index)))])))))
+
+(defn- addRow!
+  "adds row y of the source, shrunk to width columns and times weight, to
+   the r g b sums"
+  [^ints pixels source-width y columns ^doubles sums weight]
+  (let [start (* (long y) (long source-width))
+        weight (double weight)]
+    (dotimes [x (count columns)]
+      (let [[first-index last-index first-share last-share] (columns x)
+            first-index (long first-index)
+            last-index (long last-index)]
+        (loop [i first-index r 0.0 g 0.0 b 0.0]
+          (if (<= i last-index)
+            (let [c (aget pixels (+ start i))
+                  share (double (cond (== i first-index) first-share
+                                      (== i last-index) last-share
+                                      :else 1.0))]
+              (recur (inc i)
+                     (+ r (* share (bit-and (bit-shift-right c 16) 0xFF)))
+                     (+ g (* share (bit-and (bit-shift-right c 8) 0xFF)))
+                     (+ b (* share (bit-and c 0xFF)))))
+            (do (aset sums (* 3 x) (+ (aget sums (* 3 x)) (* weight r)))
+                (aset sums (+ 1 (* 3 x)) (+ (aget sums (+ 1 (* 3 x))) (* weight g)))
+                (aset sums (+ 2 (* 3 x)) (+ (aget sums (+ 2 (* 3 x))) (* weight b))))))))))
+
+(defn fitSize
+  "[width height] of a width by height image scaled to fit in a size by
+   size box, keeping its proportions. images that already fit keep their
+   size"
+  [width height size]
+  (let [scale (min 1.0 (/ (double size) (max width height)))]
+    [(max 1 (Math/round (* width scale))) (max 1 (Math/round (* height scale)))]))
+
+(defn shrink
+  "area averages a width by height argb pixel array down to thumb-width
+   by thumb-height, returning the thumbnail's pixel array"
+  [^ints pixels width height thumb-width thumb-height]
+  (let [columns (weights width thumb-width)
+        rows (weights height thumb-height)
+        area (* (/ (double width) thumb-width) (/ (double height) thumb-height))
+        sums (double-array (* 3 thumb-width))
+        thumb (int-array (* thumb-width thumb-height))]
+    (dotimes [ty thumb-height]
+      (let [[first-index last-index first-share last-share] (rows ty)]
+        (java.util.Arrays/fill sums 0.0)
+        (doseq [y (range first-index (inc (long last-index)))]
+          (addRow! pixels width y columns sums
+                   (cond (== (long y) (long first-index)) first-share
+                         (== (long y) (long last-index)) last-share
+                         :else 1.0)))
+        (dotimes [x thumb-width]
+          (let [channel (fn [i] (min 255 (Math/round (/ (aget sums (+ i (* 3 x))) area))))]
+            (aset thumb (+ x (* ty (long thumb-width)))
+                  (unchecked-int (bit-or 0xFF000000
+                                         (bit-shift-left (long (channel 0)) 16)
+                                         (bit-shift-left (long (channel 1)) 8)
+                                         (long (channel 2)))))))))
+    thumb))
@@ -0,0 +1,260 @@
+(ns sketch.tiff
+  (:require [clojure.java.io :as io])
+  (:import [java.io RandomAccessFile]
+           [java.nio ByteBuffer ByteOrder]
+           [java.util Arrays]
+           [java.nio.channels FileChannel]))
+
+;; ------------ TIFF Writer -----------------
+;; Writes baseline rgb TIFFs a strip of rows at a time, so an image never
+;; has to be held whole, or copied into a PImage, to be saved. The strips
+;; are written first and the directory describing them last, once their
+;; sizes are known; the header is then pointed at the directory.
+;;
+;; Rows are asked for one at a time from a function that fills a byte
+;; array with r g b triples, so the pixels can come from a pixel array, a
+;; mapped canvas or anything else. Strips are written as they are or LZW
+;; compressed (see lzw).
+;;
+;; Offsets in a TIFF are unsigned 32 bit, so a file can reach 4 GB. Past 2 GB
+;; they no longer fit an int and are written by their low 32 bits.
+
+(def ^:private ^:const rgb-bytes 3)
+
+(def ^:private ^:const max-bytes 0xFFFFFFFF)
+
+(defn- checkSize
+  "fails when a TIFF would need to run to end bytes"
+  [path end]
+  (when (> (long end) max-bytes)
+    (throw (ex-info (str "can not write " path ", it needs " end
+                         " bytes and a TIFF can not be larger than 4 GB")
+                    {:path path :bytes end}))))
+
+(defn- rowsPerStrip
+  "rows per strip, keeping strips near 64 KB"
+  [width]
+  (max 1 (quot 65536 (* rgb-bytes (long width)))))
+
+(defn- directory
+  "the image file directory for the strips, placed at offset"
+  [width height rows-per-strip offsets counts compression offset]
+  (let [strips (count offsets)
+        entries 13
+        ;; values too large for an entry follow the directory
+        extra (+ offset 2 (* 12 entries) 4)
+        bits-at extra
+        x-res-at (+ bits-at 6)
+        y-res-at (+ x-res-at 8)
+        offsets-at (+ y-res-at 8)
+        counts-at (+ offsets-at (* 4 strips))
+        buffer (.order (ByteBuffer/allocate (- (+ counts-at (* 4 strips)) offset))
+                       ByteOrder/LITTLE_ENDIAN)
+        entry (fn [tag type n value]
+                (.putShort buffer (short tag))
+                (.putShort buffer (short type))
+                (.putInt buffer (int n))
+                (if (and (= type 3) (= n 1))
+                  (do (.putShort buffer (short value)) (.putShort buffer (short 0)))
+                  (.putInt buffer (unchecked-int value))))
+        short-type 3
+        long-type 4
+        rational-type 5]
+    (.putShort buffer (short entries))
+    (entry 256 long-type 1 width)
+    (entry 257 long-type 1 height)
+    (entry 258 short-type 3 bits-at)
+    (entry 259 short-type 1 compression)
+    ;; rgb
+    (entry 262 short-type 1 2)
+    (entry 273 long-type strips (if (= 1 strips) (first offsets) offsets-at))
+    (entry 277 short-type 1 rgb-bytes)
+    (entry 278 long-type 1 rows-per-strip)
+    (entry 279 long-type strips (if (= 1 strips) (first counts) counts-at))
+    (entry 282 rational-type 1 x-res-at)
+    (entry 283 rational-type 1 y-res-at)
+    ;; chunky, r g b side by side
+    (entry 284 short-type 1 1)
+    ;; inches
+    (entry 296 short-type 1 2)
+    (.putInt buffer 0)
+    (dotimes [_ 3] (.putShort buffer (short 8)))
+    (dotimes [_ 2] (.putInt buffer 72) (.putInt buffer 1))
+    (doseq [o offsets] (.putInt buffer (unchecked-int o)))
+    (doseq [c counts] (.putInt buffer (int c)))
+    (.flip buffer)))
+
+(defn- writeFully
+  [^FileChannel channel ^ByteBuffer buffer]
+  (while (.hasRemaining buffer)
+    (.write channel buffer)))
+
+(defn writeRows
+  "writes a width by height TIFF to path. fill-row is called with each y
+   and a byte array to fill with the row's r g b triples. encode-strip
+   turns the raw bytes of a strip into what is written, given the strip's
+   bytes and their length, and compression is the TIFF code saying how"
+  ([path width height fill-row]
+   (writeRows path width height fill-row 1 (fn [^bytes strip n] (ByteBuffer/wrap strip 0 n))))
+  ([path width height fill-row compression encode-strip]
+   (io/make-parents path)
+   (let [width (long width)
+         height (long height)
+         rows-per-strip (long (rowsPerStrip width))
+         row-length (* rgb-bytes width)
+         row (byte-array row-length)
+         strip (byte-array (* row-length rows-per-strip))]
+     ;; uncompressed, the size is known before anything is written
+     (when (= 1 compression)
+       (checkSize path (+ 8 (* row-length height))))
+     (with-open [file (RandomAccessFile. (io/file path) "rw")]
+       (let [channel (.getChannel file)]
+         (.setLength file 0)
+         ;; header, pointed at the directory at the end
+         (writeFully channel (doto (.order (ByteBuffer/allocate 8) ByteOrder/LITTLE_ENDIAN)
+                               (.put (byte 73)) (.put (byte 73)) (.putShort (short 42)) (.putInt 0)
+                               (.flip)))
+         (loop [y 0 offsets [] counts []]
+           (if (< y height)
+             (let [rows (min rows-per-strip (- height y))
+                   _ (dotimes [i rows]
+                       (fill-row (+ y i) row)
+                       (System/arraycopy row 0 strip (* i row-length) row-length))
+                   ^ByteBuffer encoded (encode-strip strip (* rows row-length))
+                   offset (.position channel)
+                   n (.remaining encoded)]
+               (checkSize path (+ offset n))
+               (writeFully channel encoded)
+               (recur (+ y rows) (conj offsets offset) (conj counts n)))
+             ;; directories start on a word boundary
+             (let [offset (+ (.position channel) (rem (.position channel) 2))
+                   ^ByteBuffer ifd (directory width height rows-per-strip offsets counts compression offset)]
+               (checkSize path (+ offset (.remaining ifd)))
+               (.position channel offset)
+               (writeFully channel ifd)
+               (.position channel 4)
+               (writeFully channel (doto (.order (ByteBuffer/allocate 4) ByteOrder/LITTLE_ENDIAN)
+                                     (.putInt (unchecked-int offset)) (.flip))))))))
+     path)))
+
+;; ------------ LZW -----------------
+;; TIFF flavoured LZW: codes are 9 to 12 bits wide, packed high bit first,
+;; and every strip starts with a clear code. The code width grows one code
+;; early, as soon as the decoder's table reaches 511, 1023 or 2047
+;; entries, and the table is cleared before it runs past 4093.
+;;
+;; The table maps a prefix code and the byte following it to a code. It is
+;; an open addressed hash table over packed (prefix << 8 | byte) keys,
+;; small enough to empty with a fill on every clear.
+
+(def ^:const lzw-compression 5)
+
+(def ^:private ^:const clear-code 256)
+
+(def ^:private ^:const end-code 257)
+
+(def ^:private ^:const first-code 258)
+
+(def ^:private ^:const last-code 4093)
+
+(def ^:private ^:const table-size 8192)
+
+(defn- codeWidth
+  "bits per code while the decoder's table holds entries codes"
+  ^long [^long entries]
+  (cond (< entries 511) 9
+        (< entries 1023) 10
+        (< entries 2047) 11
+        :else 12))
+
+(defn- slot
+  "the table slot holding key, or the empty one where it would go"
+  ^long [^ints keys ^long key]
+  (loop [i (bit-and (unchecked-multiply key 0x9E3779B1) (dec table-size))]
+    (let [k (aget keys i)]
+      (if (or (== k -1) (== k key))
+        i
+        (recur (bit-and (inc i) (dec table-size)))))))
+
+(defn- emit!
+  "packs a width bit code after the pending bits, writing out whole bytes"
+  ^long [^bytes buffer ^longs state ^long code ^long width]
+  (loop [pending (bit-or (bit-shift-left (aget state 0) width) code)
+         count (+ (aget state 1) width)
+         position (aget state 2)]
+    (if (>= count 8)
+      (let [count (- count 8)]
+        (aset buffer position (unchecked-byte (bit-shift-right pending count)))
+        (recur (bit-and pending (dec (bit-shift-left 1 count))) count (inc position)))
+      (do (aset state 0 pending)
+          (aset state 1 count)
+          (aset state 2 position)
+          position))))
+
+(defn lzw
+  "an encode-strip for writeRows compressing each strip with LZW, to be
+   written with lzw-compression. it reuses its buffers from strip to
+   strip, so it belongs to one writer at a time"
+  []
+  (let [keys (int-array table-size)
+        codes (int-array table-size)
+        out (volatile! (byte-array 0))]
+    (fn [^bytes strip n]
+      (let [n (long n)
+            ;; no code stands for less than a byte, so 12 bits a byte, plus
+            ;; the clear codes, bounds the output
+            ^bytes buffer (if (< (alength ^bytes @out) (+ 16 (* 2 n)))
+                            (vreset! out (byte-array (+ 16 (* 2 n))))
+                            @out)
+            ;; bits waiting to be written, how many and the write position
+            state (long-array 3)]
+        (Arrays/fill keys (int -1))
+        (emit! buffer state clear-code 9)
+        (loop [i 1
+               prefix (long (bit-and (aget strip 0) 0xFF))
+               next-code first-code]
+          (if (< i n)
+            (let [b (long (bit-and (aget strip i) 0xFF))
+                  key (bit-or (bit-shift-left prefix 8) b)
+                  at (slot keys key)]
+              (if (== (aget keys at) key)
+                (recur (inc i) (long (aget codes at)) next-code)
+                (do (emit! buffer state prefix (codeWidth (dec next-code)))
+                    (if (< next-code last-code)
+                      (do (aset keys at (int key))
+                          (aset codes at (int next-code))
+                          (recur (inc i) b (inc next-code)))
+                      ;; the table is full, the decoder is told to start over
+                      (do (emit! buffer state clear-code 12)
+                          (Arrays/fill keys (int -1))
+                          (recur (inc i) b first-code))))))
+            (do (emit! buffer state prefix (codeWidth (dec next-code)))
+                (emit! buffer state end-code (codeWidth next-code)))))
+        ;; the last byte, padded with zero bits
+        (when (pos? (aget state 1))
+          (emit! buffer state 0 (- 8 (aget state 1))))
+        (ByteBuffer/wrap buffer 0 (aget state 2))))))
+
+;; ------------ Pixels -----------------
+
+(defn pixelRow
+  "a fill-row function reading a width wide argb pixel array"
+  [^ints pixels width]
+  (let [width (long width)]
+    (fn [y ^bytes row]
+      (let [start (* (long y) width)]
+        (dotimes [x width]
+          (let [c (aget pixels (+ start x))]
+            (aset row (* 3 x) (unchecked-byte (bit-shift-right c 16)))
+            (aset row (+ 1 (* 3 x)) (unchecked-byte (bit-shift-right c 8)))
+            (aset row (+ 2 (* 3 x)) (unchecked-byte c))))))))
+
+(defn writePixels
+  "writes a width by height argb pixel array as a TIFF, LZW compressed
+   when compress? is true"
+  ([path pixels width height]
+   (writePixels path pixels width height false))
+  ([path ^ints pixels width height compress?]
+   (if compress?
+     (writeRows path width height (pixelRow pixels width) lzw-compression (lzw))
+     (writeRows path width height (pixelRow pixels width)))))
@@ -0,0 +1,159 @@
+(ns sketch.tiles
+  (:require [sketch.pixel_buffer :as pb]
+            [sketch.mapped_canvas :as mc]
+            [clojure.java.io :as io]
+            [clojure.string :as string])
+  (:import [java.awt Color Graphics2D RenderingHints]
+           [java.awt.image BufferedImage DataBufferInt DirectColorModel Raster]
+           [java.io RandomAccessFile]
+           [processing.core PImage PConstants]))
+
+;; ------------ Tiled Rendering -----------------
+;; Renders a canvas too large to hold in memory one tile at a time. A
+;; single tile sized buffer is drawn into, written straight to its place in
+;; the output file and cleared for the next tile, so memory depends on the
+;; tile size and not on the size of the canvas.
+;;
+;; A tile is a viewport onto the canvas. The Graphics2D a tile is drawn
+;; with is translated and the pixel buffer is offset, so tools keep using
+;; canvas coordinates and anything falling outside the tile is clipped.
+;; Every tile draws the whole scene, so tools that can cheaply skip what
+;; lies outside a tile (see visible?) should.
+;;
+;; Finished tiles go either into a binary ppm, a short header then rgb rows
+;; so the rows of a tile can be written with a seek to each, or onto a
+;; mapped canvas (see sketch.mapped_canvas). A canvas keeps a note of the
+;; tiles already on it, so a render that was stopped carries on from the
+;; first tile it had not finished. The note names what is being rendered
+;; and is deleted once the last tile is on the canvas, so a different
+;; render, or the same one run again, starts from the first tile.
+
+(defrecord Tile [row column left top width height])
+
+(defn tiles
+  "the tiles covering a width by height canvas, row by row"
+  [width height tile-size]
+  (let [tile-size (long tile-size)]
+    (for [[row top] (map-indexed vector (range 0 height tile-size))
+          [column left] (map-indexed vector (range 0 width tile-size))]
+      (Tile. row column left top
+             (min tile-size (- width left))
+             (min tile-size (- height top))))))
+
+(defn visible?
+  "true when the box x0 y0 x1 y1, widened by margin, overlaps the tile"
+  [tile x0 y0 x1 y1 margin]
+  (and (< (- (min x0 x1) margin) (+ (:left tile) (:width tile)))
+       (< (- (min y0 y1) margin) (+ (:top tile) (:height tile)))
+       (> (+ (max x0 x1) margin) (:left tile))
+       (> (+ (max y0 y1) margin) (:top tile))))
+
+;; ------------ Tile Buffers -----------------
+
+(defn- tileImage
+  "a tile-size square PImage and a BufferedImage sharing its pixel array,
+   for drawing with pixel tools and with Java2D alike"
+  [tile-size]
+  (let [image (PImage. (int tile-size) (int tile-size) PConstants/RGB)
+        pixels (.-pixels image)
+        raster (Raster/createPackedRaster (DataBufferInt. pixels (alength pixels))
+                                          (int tile-size) (int tile-size) (int tile-size)
+                                          (int-array [0xFF0000 0xFF00 0xFF]) nil)]
+    [image (BufferedImage. (DirectColorModel. 24 0xFF0000 0xFF00 0xFF) raster false nil)]))
+
+(defn- writeTile!
+  "writes the rows of a tile into their place in the ppm"
+  [^RandomAccessFile out header-length canvas-width ^ints pixels tile-size tile]
+  (let [width (long (:width tile))
+        row-bytes (byte-array (* 3 width))]
+    (dotimes [y (:height tile)]
+      (let [row (* y (long tile-size))]
+        (dotimes [x width]
+          (let [c (aget pixels (+ row x))]
+            (aset row-bytes (* 3 x) (unchecked-byte (bit-shift-right c 16)))
+            (aset row-bytes (+ 1 (* 3 x)) (unchecked-byte (bit-shift-right c 8)))
+            (aset row-bytes (+ 2 (* 3 x)) (unchecked-byte c))))
+        (.seek out (+ (long header-length)
+                      (* 3 (+ (* (+ (long (:top tile)) y) (long canvas-width))
+                              (long (:left tile))))))
+        (.write out row-bytes)))))
+
+(defn- renderTiles
+  "draws each tile into one reused tile buffer and hands its pixels, with
+   the tile, to write-tile!"
+  [tile-size tiles draw-tile ^Color background write-tile!]
+  (let [[^PImage image ^BufferedImage tile-image] (tileImage tile-size)]
+    (doseq [tile tiles]
+      (let [^Graphics2D g (.createGraphics tile-image)]
+        (.setColor g background)
+        (.fillRect g 0 0 (int tile-size) (int tile-size))
+        (.setRenderingHint g RenderingHints/KEY_ANTIALIASING RenderingHints/VALUE_ANTIALIAS_ON)
+        (.clipRect g 0 0 (int (:width tile)) (int (:height tile)))
+        (.translate g (double (- (:left tile))) (double (- (:top tile))))
+        (draw-tile g (pb/lock image (:left tile) (:top tile)) tile)
+        (.dispose g)
+        (write-tile! (.-pixels image) tile)))))
+
+(defn renderTiled
+  "renders a width by height canvas tile by tile into a binary ppm at
+   path. draw-tile is called for every tile with a Graphics2D and a pixel
+   buffer that both take canvas coordinates, and the tile itself. each
+   tile starts filled with background, black by default"
+  ([width height tile-size path draw-tile]
+   (renderTiled width height tile-size path draw-tile Color/BLACK))
+  ([width height tile-size path draw-tile ^Color background]
+   (io/make-parents path)
+   (let [header (.getBytes (str "P6\n" width " " height "\n255\n") "US-ASCII")]
+     (with-open [out (RandomAccessFile. (io/file path) "rw")]
+       (.setLength out 0)
+       (.write out header)
+       (.setLength out (+ (alength header) (* 3 (long width) (long height))))
+       (renderTiles tile-size (tiles width height tile-size) draw-tile background
+                    (fn [pixels tile]
+                      (writeTile! out (alength header) width pixels tile-size tile)))
+       path))))
+
+;; ------------ Resumable Rendering -----------------
+
+(defn- doneFile
+  ^java.io.File [canvas]
+  (io/file (str (:path canvas) ".done")))
+
+(defn- finishedTiles
+  "[row column] of the tiles already rendered onto the canvas at this tile
+   size for the render named render-id, none if the note was left by
+   another canvas, tile size or render"
+  [canvas tile-size render-id]
+  (let [^java.io.File file (doneFile canvas)
+        header (str (:width canvas) " " (:height canvas) " " tile-size " " render-id)
+        lines (when (.exists file) (string/split-lines (slurp file)))]
+    (if (= (first lines) header)
+      (set (for [line (rest lines)
+                 :let [[row column] (string/split line #" ")]
+                 :when column]
+             [(Long/parseLong row) (Long/parseLong column)]))
+      (do (spit file (str header "\n"))
+          #{}))))
+
+(defn renderToCanvas
+  "renders onto a mapped canvas tile by tile, like renderTiled. each tile
+   is noted once it is on the canvas, and tiles noted by an earlier render
+   with the same render-id that was stopped are skipped, so running it
+   again finishes it. render-id should change whenever what is drawn does,
+   a seed or a hash of the scene. without one every tile is rendered"
+  ([canvas tile-size draw-tile]
+   (renderToCanvas canvas tile-size draw-tile Color/BLACK))
+  ([canvas tile-size draw-tile ^Color background]
+   (renderToCanvas canvas tile-size draw-tile background (str (java.util.UUID/randomUUID))))
+  ([canvas tile-size draw-tile ^Color background render-id]
+   (let [finished (finishedTiles canvas tile-size render-id)
+         remaining (remove #(finished [(:row %) (:column %)])
+                           (tiles (:width canvas) (:height canvas) tile-size))]
+     (println "Rendering" (count remaining) "tiles," (count finished) "already done")
+     (renderTiles tile-size remaining draw-tile background
+                  (fn [pixels tile]
+                    (mc/writeBlock! canvas pixels tile-size (:left tile) (:top tile)
+                                    (:width tile) (:height tile))
+                    (spit (doneFile canvas) (str (:row tile) " " (:column tile) "\n") :append true)))
+     (io/delete-file (doneFile canvas) true)
+     canvas)))
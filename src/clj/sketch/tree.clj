@@ -3,7 +3,8 @@
             [clojure.java.shell :refer [sh]]
             [sketch.calculations :as calc]
             [sketch.grow :as grow]
-            [sketch.path :as path])
+            [sketch.path :as path]
+            [sketch.rng :as rng])
   (:use [incanter.core :only [$=]])
   (:use [clojure.math.combinatorics :only [combinations cartesian-product]])
   (:use [clojure.pprint])
@@ -168,7 +169,7 @@
                                   :branch-rate (:branch-rate data)
                                   :side "top"
                                   :delay-growth-by (if (:is-random? data)
-                                                     (rand-int (:growth-delay data))
+                                                     (rng/uniformInt (:growth-delay data))
                                                      (:growth-delay data))
                                   :parent-node-id 0)]
           (swap! new-path assoc-in [:nodes] (path/insert (:nodes @new-path) node-index new-node)))))
@@ -535,11 +536,11 @@
                 (if (not (branchReady? node))
                   (let [updated-node (if (matured? node)
                                        (if (not (reachedMaxDistanceFromTop? node))
-                                         (let [updated-node (path/moveNodeXPositionLeft node (/ side-rate (+ (rand-int 10) 4)))
-                                               updated-node (path/moveNodeYPositionUp updated-node (/ side-rate (+ (rand-int 5) 2)))]
+                                         (let [updated-node (path/moveNodeXPositionLeft node (/ side-rate (+ (rng/uniformInt 10) 4)))
+                                               updated-node (path/moveNodeYPositionUp updated-node (/ side-rate (+ (rng/uniformInt 5) 2)))]
                                            updated-node)
-                                         (let [updated-node (path/moveNodeXPositionLeft node (/ side-rate (+ (rand-int 8) 5)))
-                                               updated-node (path/moveNodeYPositionUp updated-node (/ side-rate (+ (rand-int 5) 2)))]
+                                         (let [updated-node (path/moveNodeXPositionLeft node (/ side-rate (+ (rng/uniformInt 8) 5)))
+                                               updated-node (path/moveNodeYPositionUp updated-node (/ side-rate (+ (rng/uniformInt 5) 2)))]
                                            updated-node))
                                        node)
                         updated-node (grow/incGrowthCount updated-node)
@@ -574,11 +575,11 @@
                 (if (not (branchReady? node))
                   (let [updated-node (if (matured? node)
                                        (if (not (reachedMaxDistanceFromTop? node))
-                                         (let [updated-node (path/moveNodeXPositionRight node (/ side-rate (+ (rand-int 10) 4)))
-                                               updated-node (path/moveNodeYPositionUp updated-node (/ side-rate (+ (rand-int 5) 2)))]
+                                         (let [updated-node (path/moveNodeXPositionRight node (/ side-rate (+ (rng/uniformInt 10) 4)))
+                                               updated-node (path/moveNodeYPositionUp updated-node (/ side-rate (+ (rng/uniformInt 5) 2)))]
                                            updated-node)
-                                         (let [updated-node (path/moveNodeXPositionRight node (/ side-rate (+ (rand-int 8) 5)))
-                                               updated-node (path/moveNodeYPositionUp updated-node (/ side-rate (+ (rand-int 5) 2)))]
+                                         (let [updated-node (path/moveNodeXPositionRight node (/ side-rate (+ (rng/uniformInt 8) 5)))
+                                               updated-node (path/moveNodeYPositionUp updated-node (/ side-rate (+ (rng/uniformInt 5) 2)))]
                                            updated-node))
                                        node)
                         updated-node (grow/incGrowthCount updated-node)
@@ -1,19 +1,78 @@
 (ns sketch.triangle
-  (:require [sketch.shapes :as shape]
-            [sketch.calculations :as calc]))
+  (:require [quil.core :as q]
+            [sketch.shapes :as shape]
+            [sketch.calculations :as calc]
+            [sketch.rng :as rng]
+            [sketch.raster :as raster]
+            [sketch.polygon :as polygon]
+            [sketch.integral :as integral]
+            [sketch.mesh :as mesh]
+            [sketch.pixel_buffer :as pb])
+  (:import [java.util.concurrent ForkJoinTask]))
 
 ;; ----------- triangle division functions ------------
 
-(defrecord Triangle [id iteration nodes pixels])
+(defrecord Triangle [id iteration nodes pixels spans])
+
+(def node-quantum
+  "nodes closer than this along both axes are the same node"
+  0.125)
+
+(defn- cell-key
+  ^long [^long i ^long j]
+  (bit-or (bit-shift-left i 32) (bit-and j 0xFFFFFFFF)))
+
+(defn node-key
+  "quantised position used to match nodes across triangles, packed into a
+   long"
+  [x y]
+  (cell-key (Math/round (/ (double x) (double node-quantum)))
+            (Math/round (/ (double y) (double node-quantum)))))
+
+(def ^:private neighbor-cells
+  [[0 0] [-1 0] [1 0] [0 -1] [0 1] [-1 -1] [1 -1] [-1 1] [1 1]])
+
+(defn find-node
+  "id of the node in the triangle map within node-quantum of x y, or nil.
+   looks in the index cells around x y so positions that round to
+   neighboring cells still match"
+  [triangle-map x y]
+  (let [x (double x)
+        y (double y)
+        i (Math/round (/ x (double node-quantum)))
+        j (Math/round (/ y (double node-quantum)))
+        index (:node-index triangle-map)
+        nodes (:nodes triangle-map)]
+    (some (fn [[di dj]]
+            (when-let [id (get index (cell-key (+ i (long di)) (+ j (long dj))))]
+              (let [position (:position (get nodes id))]
+                (when (and (<= (Math/abs (- (double (:x position)) x)) (double node-quantum))
+                           (<= (Math/abs (- (double (:y position)) y)) (double node-quantum)))
+                  id))))
+          neighbor-cells)))
+
+(defn add-node
+  "adds a node to the triangle map under the next free id unless a node
+   already sits at its position"
+  [triangle-map node]
+  (let [x (:x (:position node))
+        y (:y (:position node))]
+    (if (find-node triangle-map x y)
+      triangle-map
+      (let [id (keyword (str (:node-count triangle-map)))]
+        (-> triangle-map
+            (assoc-in [:nodes id] (assoc node :ID id))
+            (assoc-in [:node-index (node-key x y)] id)
+            (update-in [:node-count] inc))))))
 
 (defn insert-node
-  "inserts a node into the triangle map if the node does not already exist in the collection"
+  "inserts a node into the triangle map if no node already exists at its
+   position, returning the node kept in the map"
   [triangle-map node]
-  (let [node-id (:ID node)]
-    (when (not (contains? (mapv (fn [x] (:ID x)) (:nodes @triangle-map)) node-id))
-      (swap! triangle-map assoc-in [:nodes (keyword (str (:node-count @triangle-map)))] node)
-      (swap! triangle-map update-in [:node-count] inc))
-    (get (:nodes @triangle-map) node-id)))
+  (let [x (:x (:position node))
+        y (:y (:position node))
+        m (swap! triangle-map add-node node)]
+    (get (:nodes m) (find-node m x y))))
 
 (defn build-triangle-node
   "builds a node with an id that matches the triangle-map pattern"
@@ -44,20 +103,16 @@
   [side]
   {:x (:x side) :y (:y side)})
 
+(defn get-triangle-spans
+  "retrieves the [y x0 x1] pixel spans covered by a given triangle, see
+   raster/triangleSpans"
+  [vertices]
+  (raster/triangleSpans vertices))
+
 (defn get-triangle-pixels
   "retrieves all of the pixels contained within a given triangle"
   [vertices]
-  (let [[xmin ymin xmax ymax] (calc/bbox vertices)]
-    (filter identity
-            (doall
-             (map
-              (fn [[x y :as p]]
-                (let [bc (calc/barycentric vertices p)]
-                  (when (calc/visible? bc)
-                    (conj {:x x :y y}))))
-              (for [y (range ymin ymax)
-                    x (range xmin xmax)]
-                [x y]))))))
+  (raster/spanPixels (get-triangle-spans vertices)))
 
 (defn get-left-node-id
   "returns the new left-node's id based on new orientation"
@@ -107,13 +162,15 @@
 (defn build-triangle
   "builds a new triangle"
   [triangle-map depth node-a node-b node-c]
-  (Triangle.
-   (@triangle-map :triangle-count)
-   depth
-   {:node-a (:ID node-a) :node-b (:ID node-b) :node-c (:ID node-c)}
-   (get-triangle-pixels [[(:x (:position node-a)) (:y (:position node-a))]
-                         [(:x (:position node-b)) (:y (:position node-b))]
-                         [(:x (:position node-c)) (:y (:position node-c))]])))
+  (let [spans (get-triangle-spans [[(:x (:position node-a)) (:y (:position node-a))]
+                                   [(:x (:position node-b)) (:y (:position node-b))]
+                                   [(:x (:position node-c)) (:y (:position node-c))]])]
+    (Triangle.
+     (@triangle-map :triangle-count)
+     depth
+     {:node-a (:ID node-a) :node-b (:ID node-b) :node-c (:ID node-c)}
+     (raster/spanPixels spans)
+     spans)))
 
 (defn add-triangle
   "adds a new triangle to traingle-map"
@@ -121,192 +178,311 @@
   (swap! triangle-map update-in [:triangle-count] inc)
   (swap! triangle-map assoc-in [:triangles] (conj (@triangle-map :triangles) new-triangle)))
 
+(defn record-split
+  "notes in the triangle map that the edge between two nodes was divided
+   at new-node, so a mesh can split the triangles on its other side there.
+   an edge can be divided from both sides"
+  [triangle-map node-a node-b new-node]
+  (swap! triangle-map update-in [:splits #{(:ID node-a) (:ID node-b)}] (fnil conj []) (:ID new-node)))
+
 (defn divide-triangles
   "Divides a given triangle into two new triangles, split
-   along the longest edge"
-  [triangle-map iteration left-node right-node bottom-node]
-  (let [depth (dec iteration)]
-    (if (>= depth 0)
-
-      (let [median (calc/calculateMedian [left-node right-node])
-            new-node (insert-node triangle-map (build-triangle-node (:x median) (:y median) (:node-count @triangle-map)))
-            rand1 (calc/calculateRandomInt 1 100)
-            rand2 (calc/calculateRandomInt 1 100)]
-
-        (let [longest-side (determine-longest-triangle-side left-node new-node bottom-node)
-              orientation (last longest-side)
-              left-node-id   (get-left-node-id   orientation true left-node right-node bottom-node new-node)
-              right-node-id  (get-right-node-id  orientation true left-node right-node bottom-node new-node)
-              bottom-node-id (get-bottom-node-id orientation true left-node right-node bottom-node new-node)
-              left-node      (left-node-id   (:nodes @triangle-map))
-              right-node     (right-node-id  (:nodes @triangle-map))
-              bottom-node    (bottom-node-id (:nodes @triangle-map))]
-          (if (or (< rand1 111) (> depth 14))
-            (divide-triangles triangle-map depth left-node right-node bottom-node)
-            (let [new-triangle (build-triangle triangle-map depth left-node right-node bottom-node)]
-              (add-triangle triangle-map new-triangle)
-              new-triangle)))
-
-        (let [longest-side (determine-longest-triangle-side new-node right-node bottom-node)
-              orientation (last longest-side)
-              left-node-id   (get-left-node-id   orientation false left-node right-node bottom-node new-node)
-              right-node-id  (get-right-node-id  orientation false left-node right-node bottom-node new-node)
-              bottom-node-id (get-bottom-node-id orientation false left-node right-node bottom-node new-node)
-              left-node      (left-node-id   (:nodes @triangle-map))
-              right-node     (right-node-id  (:nodes @triangle-map))
-              bottom-node    (bottom-node-id (:nodes @triangle-map))]
-          (if (or (< rand2 111) (> depth 14))
-            (divide-triangles triangle-map depth left-node right-node bottom-node)
-            (let [new-triangle (build-triangle triangle-map depth left-node right-node bottom-node)]
-              (add-triangle triangle-map new-triangle)
-              new-triangle))))
-      (let [new-triangle (build-triangle triangle-map depth left-node right-node bottom-node)]
-        (add-triangle triangle-map new-triangle)
-        new-triangle))))
-
-(defn get-neighboring-verticies
-  "returns a hash-map containing the prev and next verticies"
-  [index vector]
-  (let [prev (if (= index 0)
-               (last vector)
-               (get vector (- index 1)))
-        next (if (= index (- (count vector) 1))
-               (first vector)
-               (get vector (+ index 1)))]
-    {:prev prev :next next}))
-
-(defn area-contains-no-other-vertex?
-  "returns true if the any any of the given verticies is found within the area of the given triangle"
-  [triangle verticies]
-  (some false? (let [a (:a triangle)
-                     b (:b triangle)
-                     c (:c triangle)]
-                 (for [v verticies
-                       :let [x (:x v)
-                             y (:y v)
-                             avx [0 (- (:x b) (:x a)) (- x (:x a))]
-                             avy [0 (- (:y b) (:y a)) (- y (:y a))]
-                             bvx [0 (- (:x c) (:x b)) (- x (:x b))]
-                             bvy [0 (- (:y c) (:y b)) (- y (:y b))]
-                             cvx [0 (- (:x a) (:x c)) (- x (:x c))]
-                             cvy [0 (- (:y a) (:y c)) (- y (:y c))]]]
-                   (if (and (<= (first (calc/cross avx avy)) 0)
-                            (<= (first (calc/cross bvx bvy)) 0)
-                            (<= (first (calc/cross cvx cvy)) 0))
-                     true
-                     false)))))
-
-(defn angle-is-convex?
-  "returns true if a given vertex is less than 180 degrees"
-  [vertex]
-  (let [a (:a vertex)
-        b (:b vertex)
-        c (:c vertex)]
-    (neg? (first (calc/cross [0 (- (:x a) (:x b)) (- (:x c) (:x b))]
-                             [0 (- (:y a) (:y b)) (- (:y c) (:y b))])))))
+   along the longest edge. in a seeded run each half keeps
+   dividing with its own stream split off this one. given
+   split?, a triangle only divides while split? is true of
+   its nodes"
+  ([triangle-map iteration left-node right-node bottom-node]
+   (divide-triangles triangle-map iteration left-node right-node bottom-node nil))
+  ([triangle-map iteration left-node right-node bottom-node split?]
+   (let [depth (dec iteration)]
+     (if (and (>= depth 0)
+              (or (nil? split?) (split? left-node right-node bottom-node)))
+
+       (let [median (calc/calculateMedian [left-node right-node])
+             new-node (insert-node triangle-map (build-triangle-node (:x median) (:y median) (:node-count @triangle-map)))
+             _ (record-split triangle-map left-node right-node new-node)
+             rand1 (calc/calculateRandomInt 1 100)
+             rand2 (calc/calculateRandomInt 1 100)
+             left-rng (rng/split)
+             right-rng (rng/split)]
+
+         (let [longest-side (determine-longest-triangle-side left-node new-node bottom-node)
+               orientation (last longest-side)
+               left-node-id   (get-left-node-id   orientation true left-node right-node bottom-node new-node)
+               right-node-id  (get-right-node-id  orientation true left-node right-node bottom-node new-node)
+               bottom-node-id (get-bottom-node-id orientation true left-node right-node bottom-node new-node)
+               left-node      (left-node-id   (:nodes @triangle-map))
+               right-node     (right-node-id  (:nodes @triangle-map))
+               bottom-node    (bottom-node-id (:nodes @triangle-map))]
+           (if (or (< rand1 111) (> depth 14))
+             (rng/withStream left-rng (divide-triangles triangle-map depth left-node right-node bottom-node split?))
+             (let [new-triangle (build-triangle triangle-map depth left-node right-node bottom-node)]
+               (add-triangle triangle-map new-triangle)
+               new-triangle)))
+
+         (let [longest-side (determine-longest-triangle-side new-node right-node bottom-node)
+               orientation (last longest-side)
+               left-node-id   (get-left-node-id   orientation false left-node right-node bottom-node new-node)
+               right-node-id  (get-right-node-id  orientation false left-node right-node bottom-node new-node)
+               bottom-node-id (get-bottom-node-id orientation false left-node right-node bottom-node new-node)
+               left-node      (left-node-id   (:nodes @triangle-map))
+               right-node     (right-node-id  (:nodes @triangle-map))
+               bottom-node    (bottom-node-id (:nodes @triangle-map))]
+           (if (or (< rand2 111) (> depth 14))
+             (rng/withStream right-rng (divide-triangles triangle-map depth left-node right-node bottom-node split?))
+             (let [new-triangle (build-triangle triangle-map depth left-node right-node bottom-node)]
+               (add-triangle triangle-map new-triangle)
+               new-triangle))))
+       (let [new-triangle (build-triangle triangle-map depth left-node right-node bottom-node)]
+         (add-triangle triangle-map new-triangle)
+         new-triangle)))))
+
+(defn variance-split
+  "a split? for divide-triangles that keeps dividing while the colour
+   variance under a triangle's bounding box, read from an integral
+   image, is above threshold"
+  [image threshold]
+  (fn [left-node right-node bottom-node]
+    (> (integral/pointsVariance image (map :position [left-node right-node bottom-node]))
+       threshold)))
+
+(defn split-test
+  "the split? asked for by data. with :split-type \"variance\" triangles
+   divide until the source image is flat beneath them, the source being
+   :integral or else the current sketch pixels"
+  [data]
+  (when (= "variance" (:split-type data))
+    (variance-split (or (:integral data)
+                        (integral/fromPixels (q/pixels) (q/width) (q/height)))
+                    (:variance-threshold data 400))))
+
+;; ----------- parallel triangle division ------------
+;; divide-triangles threads every insert through the triangle-map atom,
+;; so only one triangle can be divided at a time. subdivide runs the same
+;; division on plain values: each half is divided on its own, on a
+;; fork/join task near the top of the tree, and the leaves are merged
+;; into the triangle map in one step at the end, sharing nodes through
+;; the same position index insert-node uses.
+
+(defn- position-node
+  "a node keyed by its quantised position, for use before ids are assigned"
+  [x y]
+  {:ID (node-key x y) :position {:x x :y y}})
+
+(defn- child-nodes
+  "the left, right and bottom nodes of one half of a divided triangle, as
+   picked by divide-triangles"
+  [is-left? left-node right-node bottom-node new-node]
+  (let [longest-side (if is-left?
+                       (determine-longest-triangle-side left-node new-node bottom-node)
+                       (determine-longest-triangle-side new-node right-node bottom-node))
+        orientation (last longest-side)
+        ;; later nodes win on a shared id, matching the lookup by id
+        by-id (into {} (map (juxt :ID identity) [left-node right-node bottom-node new-node]))]
+    [(by-id (get-left-node-id   orientation is-left? left-node right-node bottom-node new-node))
+     (by-id (get-right-node-id  orientation is-left? left-node right-node bottom-node new-node))
+     (by-id (get-bottom-node-id orientation is-left? left-node right-node bottom-node new-node))]))
+
+(defn- leaf-triangle
+  [depth left-node right-node bottom-node width height]
+  {:iteration depth
+   :nodes [left-node right-node bottom-node]
+   :spans (raster/triangleSpans (mapv (fn [n] [(:x (:position n)) (:y (:position n))])
+                                      [left-node right-node bottom-node])
+                                width height)})
+
+(defn subdivide
+  "divides a triangle the way divide-triangles does without touching a
+   triangle map, returning its leaf triangles in the same order, with a
+   {:split [node-a node-b new-node]} for every edge it divides. the
+   halves of the first fork-depth levels are divided on fork/join tasks,
+   each with its own stream. split? is as for divide-triangles"
+  [iteration left-node right-node bottom-node stream fork-depth width height split?]
+  (rng/withStream
+   stream
+   (let [depth (dec iteration)]
+     (if (and (>= depth 0)
+              (or (nil? split?) (split? left-node right-node bottom-node)))
+       (let [median (calc/calculateMedian [left-node right-node])
+             new-node (position-node (:x median) (:y median))
+             rand1 (calc/calculateRandomInt 1 100)
+             rand2 (calc/calculateRandomInt 1 100)
+             left-rng (rng/splitOrNew)
+             right-rng (rng/splitOrNew)
+             divide-left (fn []
+                           (let [[l r b] (child-nodes true left-node right-node bottom-node new-node)]
+                             (if (or (< rand1 111) (> depth 14))
+                               (subdivide depth l r b left-rng (dec fork-depth) width height split?)
+                               [(leaf-triangle depth l r b width height)])))
+             divide-right (fn []
+                            (let [[l r b] (child-nodes false left-node right-node bottom-node new-node)]
+                              (if (or (< rand2 111) (> depth 14))
+                                (subdivide depth l r b right-rng (dec fork-depth) width height split?)
+                                [(leaf-triangle depth l r b width height)])))]
+         (into [{:split [left-node right-node new-node]}]
+               (if (pos? fork-depth)
+                 (let [left-task (.fork (ForkJoinTask/adapt ^Callable divide-left))
+                       right-leaves (divide-right)]
+                   (into (.join left-task) right-leaves))
+                 (into (divide-left) (divide-right)))))
+       [(leaf-triangle depth left-node right-node bottom-node width height)]))))
+
+(defn merge-leaves
+  "adds leaf triangles to the triangle map in one step, giving every
+   distinct node position one node shared by all triangles that touch it,
+   then records the divided edges"
+  [triangle-map leaves]
+  (swap! triangle-map
+         (fn [m]
+           (reduce
+            (fn [m {[node-a node-b new-node] :split}]
+              (let [id #(find-node m (:x (:position %)) (:y (:position %)))]
+                (update-in m [:splits #{(id node-a) (id node-b)}] (fnil conj []) (id new-node))))
+            (reduce
+             (fn [m leaf]
+               (let [[m ids] (reduce
+                              (fn [[m ids] node]
+                                (let [x (:x (:position node))
+                                      y (:y (:position node))
+                                      m (add-node m node)]
+                                  [m (conj ids (find-node m x y))]))
+                              [m []]
+                              (:nodes leaf))
+                     spans (:spans leaf)]
+                 (-> m
+                     (update-in [:triangles] conj (Triangle. (:triangle-count m)
+                                                             (:iteration leaf)
+                                                             {:node-a (ids 0) :node-b (ids 1) :node-c (ids 2)}
+                                                             (raster/spanPixels spans)
+                                                             spans))
+                     (update-in [:triangle-count] inc))))
+             m
+             (remove :split leaves))
+            (filter :split leaves))))
+  triangle-map)
+
+(defn node-graph
+  "the triangle map as a mesh: every node id mapped to the ids of the
+   nodes it shares a triangle edge with"
+  [triangle-map]
+  (reduce
+   (fn [graph tri]
+     (let [{:keys [node-a node-b node-c]} (:nodes tri)]
+       (-> graph
+           (update-in [node-a] (fnil into #{}) [node-b node-c])
+           (update-in [node-b] (fnil into #{}) [node-a node-c])
+           (update-in [node-c] (fnil into #{}) [node-a node-b]))))
+   {}
+   (:triangles triangle-map)))
 
 (defn triangulate-polygon
-  "builds a collection of triangles from a given polygon"
+  "builds a collection of triangles from a given polygon, nil when the
+   polygon crosses itself"
   [p]
-  (let [triangles (atom {:verticies []})
-        polygon (atom {:verticies p})
-        i (atom 0)]
-    (loop []
-      (if (> (count (:verticies @polygon)) 3)
-        (do
-          (loop [index 0]
-            (swap! i inc)
-            (let [point (get (:verticies @polygon) index)
-                  neighbors (get-neighboring-verticies index (:verticies @polygon))
-                  prev (:prev neighbors)
-                  next (:next neighbors)
-                  convex (angle-is-convex? {:a prev :b point :c next})
-                  diagonal (area-contains-no-other-vertex? {:a prev :b point :c next} (:verticies @polygon))]
-
-              (if (and convex diagonal)
-                (do
-                  (swap! triangles assoc-in [:verticies] (conj (:verticies @triangles) {:a prev :b point :c next}))
-                  (swap! polygon assoc-in [:verticies] (into []
-                                                             (remove nil?
-                                                                     (mapv
-                                                                      (fn [x] (when (not= index (first x))
-                                                                                (second x)))
-                                                                      (map-indexed vector
-                                                                                   (:verticies @polygon)))))))
-
-                (when (< index (- (count (:verticies @polygon)) 1))
-                  (recur (+ index 1))))))
-          (when (< @i 1000)
-            (recur)))
-
-        (let [a (get (:verticies @polygon) 0)
-              b (get (:verticies @polygon) 1)
-              c (get (:verticies @polygon) 2)]
-          (swap! triangles assoc-in [:verticies] (conj (:verticies @triangles)
-                                                       {:a a :b b :c c}))
-          (swap! polygon assoc-in [:verticies] []))))
-
-    (:verticies @triangles)))
+  (when-let [triangles (polygon/triangulate p)]
+    (mapv (fn [[a b c]] {:a a :b b :c c}) triangles)))
 
 (defn draw-triangle-map-average
+  "fills every triangle with the average colour of the pixels beneath it.
+   the pixels are locked once, each triangle's spans are averaged in one
+   pass and filled in the pixel buffer, then the buffer is committed once"
   [data]
-  (doseq [tri (:triangles @(:triangle-map data))]
-
-    (let [pixels (:pixels tri)
-          node-keys (:nodes tri)
-          a ((:node-a node-keys) (:nodes @(:triangle-map data)))
-          b ((:node-b node-keys) (:nodes @(:triangle-map data)))
-          c ((:node-c node-keys) (:nodes @(:triangle-map data)))
-          nodes {:node-a a :node-b b :node-c c}
-          triangle-center (calc/calculateTriangleCenter nodes)
-
-          distance-to-center (calc/calculateDistanceFromCenter triangle-center)
-          average? false
-          ;; (cond
-          ;;   (>= distance-to-center 300) (if (< (calc/calculateRandomInt 100) 4)
-          ;;                                 true
-          ;;                                 false)
-          ;;   (>= distance-to-center 150) (if (< (calc/calculateRandomInt 100) 3)
-          ;;                                 true
-          ;;                                 false)
-          ;;   (>= distance-to-center 75) (if (< (calc/calculateRandomInt 100) 2)
-          ;;                                true
-          ;;                                false)
-          ;;   (>= distance-to-center 30) (if (< (calc/calculateRandomInt 100) 1)
-          ;;                                true
-          ;;                                false)
-          ;;   :else false)
-
-          aver-r (if (= average? false)
-                   (shape/calculateAverageColor pixels :r)
-                   (- (shape/calculateAverageColor pixels :r) 30))
-          aver-g (if (= average? false)
-                   (shape/calculateAverageColor pixels :g)
-                   (- (shape/calculateAverageColor pixels :g) 30))
-          aver-b (if (= average? false)
-                   (shape/calculateAverageColor pixels :b)
-                   (- (shape/calculateAverageColor pixels :b) 30))]
-      (shape/fillShape pixels aver-r aver-g aver-b))))
+  (pb/withPixelBuffer [buffer]
+    (let [triangle-map @(:triangle-map data)]
+      (doseq [tri (:triangles triangle-map)]
+
+        (let [spans (:spans tri)
+              node-keys (:nodes tri)
+              a ((:node-a node-keys) (:nodes triangle-map))
+              b ((:node-b node-keys) (:nodes triangle-map))
+              c ((:node-c node-keys) (:nodes triangle-map))
+              nodes {:node-a a :node-b b :node-c c}
+              triangle-center (calc/calculateTriangleCenter nodes)
+
+              distance-to-center (calc/calculateDistanceFromCenter triangle-center)
+              average? false
+              ;; (cond
+              ;;   (>= distance-to-center 300) (if (< (calc/calculateRandomInt 100) 4)
+              ;;                                 true
+              ;;                                 false)
+              ;;   (>= distance-to-center 150) (if (< (calc/calculateRandomInt 100) 3)
+              ;;                                 true
+              ;;                                 false)
+              ;;   (>= distance-to-center 75) (if (< (calc/calculateRandomInt 100) 2)
+              ;;                                true
+              ;;                                false)
+              ;;   (>= distance-to-center 30) (if (< (calc/calculateRandomInt 100) 1)
+              ;;                                true
+              ;;                                false)
+              ;;   :else false)
+
+              [aver-r aver-g aver-b] (pb/spanAverage buffer spans)
+              [aver-r aver-g aver-b] (if (= average? false)
+                                       [aver-r aver-g aver-b]
+                                       [(- aver-r 30) (- aver-g 30) (- aver-b 30)])]
+          (pb/fillSpans! buffer spans (q/color aver-r aver-g aver-b)))))))
 
 (defn buildTriangles
-  "Recursively builds triangles to a given iteration"
+  "Recursively builds triangles to a given iteration. in a seeded run every
+   starting triangle divides with its own stream. see split-test for
+   dividing by image content"
   [data]
 
   (if (>= (count (:area data)) 3)
-    (let [triangles (triangulate-polygon (:area data))]
-
-      (doseq [t triangles]
-        (divide-triangles
-         (:triangle-map data)
-         (:depth data)
-         (insert-node (:triangle-map data)
-                      (build-triangle-node
-                       (:x (:a t)) (:y (:a t)) (:node-count @(:triangle-map data))))
-         (insert-node (:triangle-map data)
-                      (build-triangle-node
-                       (:x (:b t)) (:y (:b t)) (:node-count @(:triangle-map data))))
-         (insert-node (:triangle-map data)
-                      (build-triangle-node
-                       (:x (:c t)) (:y (:c t)) (:node-count @(:triangle-map data)))))))
+    (if-let [triangles (triangulate-polygon (:area data))]
+
+      (let [split? (split-test data)]
+        (doseq [[triangle-index t] (map-indexed vector triangles)]
+          (rng/withStream
+           (rng/streamFor :triangle triangle-index)
+           (divide-triangles
+            (:triangle-map data)
+            (:depth data)
+            (insert-node (:triangle-map data)
+                         (build-triangle-node
+                          (:x (:a t)) (:y (:a t)) (:node-count @(:triangle-map data))))
+            (insert-node (:triangle-map data)
+                         (build-triangle-node
+                          (:x (:b t)) (:y (:b t)) (:node-count @(:triangle-map data))))
+            (insert-node (:triangle-map data)
+                         (build-triangle-node
+                          (:x (:c t)) (:y (:c t)) (:node-count @(:triangle-map data))))
+            split?))))
+      (println "The area provided crosses itself or has no area"))
     (println "The area provided is does not contain 3 or more points"))
-  data)
\ No newline at end of file
+  data)
+
+(defn buildTrianglesParallel
+  "buildTriangles with every starting triangle divided on the fork/join
+   pool, see subdivide. the triangle map is updated once at the end.
+   given the same seed it divides exactly like buildTriangles"
+  ([data]
+   (buildTrianglesParallel data 6))
+  ([data fork-depth]
+   (if (>= (count (:area data)) 3)
+     (if-let [triangles (triangulate-polygon (:area data))]
+       (let [width (q/width)
+             height (q/height)
+             split? (split-test data)
+             tasks (mapv
+                    (fn [triangle-index t]
+                      (let [stream (or (rng/streamFor :triangle triangle-index) (rng/splitOrNew))]
+                        (.fork (ForkJoinTask/adapt
+                                ^Callable (fn []
+                                            (subdivide (:depth data)
+                                                       (position-node (:x (:a t)) (:y (:a t)))
+                                                       (position-node (:x (:b t)) (:y (:b t)))
+                                                       (position-node (:x (:c t)) (:y (:c t)))
+                                                       stream fork-depth width height split?))))))
+                    (range (count triangles))
+                    triangles)]
+         (merge-leaves (:triangle-map data) (mapcat #(.join ^ForkJoinTask %) tasks)))
+       (println "The area provided crosses itself or has no area"))
+     (println "The area provided is does not contain 3 or more points"))
+   data))
+
+(defn with-mesh
+  "adds :mesh, the half-edge mesh of the triangles built so far, to the
+   data. see sketch.mesh"
+  [data]
+  (assoc data :mesh (mesh/fromTriangleMap @(:triangle-map data))))